@@ -0,0 +1,890 @@
+import net.clsr.stupidhttp.StupidHttpBodyWriter;
+import net.clsr.stupidhttp.StupidHttpConcurrencyLimiter;
+import net.clsr.stupidhttp.StupidHttpFileCache;
+import net.clsr.stupidhttp.StupidHttpFileHandler;
+import net.clsr.stupidhttp.StupidHttpHandler;
+import net.clsr.stupidhttp.StupidHttpRequest;
+import net.clsr.stupidhttp.StupidHttpResponse;
+import net.clsr.stupidhttp.StupidHttpServer;
+import net.clsr.stupidhttp.StupidHttpStatus;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Regression checks against a running server; exits with status 1 if one fails.
+ */
+public class RegressionTest {
+	private static final String HOST = "localhost";
+	private static final int TIMEOUT = 5000;
+
+	private static final StupidHttpHandler OK = new StupidHttpHandler() {
+		@Override
+		public StupidHttpResponse handle(StupidHttpRequest req) {
+			return StupidHttpResponse.textResponse("ok");
+		}
+	};
+
+	private static int failures = 0;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args Ignored
+	 */
+	public static void main(String[] args) throws Exception {
+		oversizedBadRequestLine();
+		bodyWriterReadsRequestBody();
+		stalledRequestTimesOut();
+		handlerExceptionIsAnswered();
+		bodyWriterLengthIsEnforced();
+		shedResponseIsDelivered();
+		limiterReachesMinimum();
+		obsoleteDatesAreConditional();
+		ambiguousFramingIsRejected();
+		missingSidecarIsCached();
+		unknownTypeIsOctetStream();
+		fileHandlersOnlyRead();
+		stuckResponseIsAborted();
+		bodilessResponseHasNoEntityHeaders();
+		connectionsArePersistent();
+		chunkedRequestsAreDecoded();
+		streamedResponsesAreChunked();
+		conditionalAndRangeRequests();
+		overloadIsShed();
+		if (failures > 0) {
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+		System.exit(0);
+	}
+
+	/**
+	 * A malformed request line longer than the NIO engine's unwritten limit must be answered without stalling the loop thread.
+	 */
+	private static void oversizedBadRequestLine() throws Exception {
+		final StupidHttpServer server = startServer(18181, StupidHttpServer.ENGINE_NIO, OK);
+		try {
+			char[] method = new char[65400]; // a head just under the parser's limit, an error response echoing it just over the unwritten limit
+			Arrays.fill(method, '(');
+			String status = request(18181, new String(method) + " / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+			check("oversized bad request line is rejected", status, 400);
+			status = request(18181, "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+			check("loop still serves after an oversized bad request line", status, 200);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A body writer must find the request body unread, whether or not the connection is kept alive.
+	 */
+	private static void bodyWriterReadsRequestBody() throws Exception {
+		final StupidHttpServer server = startServer(18182, StupidHttpServer.ENGINE_BLOCKING, new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(final StupidHttpRequest req) {
+				StupidHttpResponse resp = new StupidHttpResponse();
+				resp.setBody(new StupidHttpBodyWriter() {
+					@Override
+					public void writeBody(OutputStream out) throws IOException {
+						InputStream in = req.getBodyStream();
+						int n = 0;
+						while (in.read() >= 0) {
+							n++;
+						}
+						out.write(("[echoed " + n + "]").getBytes(StandardCharsets.US_ASCII));
+					}
+				});
+				return resp;
+			}
+		});
+		try {
+			String post = "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n";
+			check("body writer reads the body of a closing request", exchange(18182, post + "Connection: close\r\n\r\nhello", "0\r\n\r\n"), "[echoed 5]");
+			check("body writer reads the body of a keep-alive request", exchange(18182, post + "\r\nhello", "0\r\n\r\n"), "[echoed 5]");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A client that stops sending in the middle of a request must not hold a worker forever.
+	 */
+	private static void stalledRequestTimesOut() throws Exception {
+		final StupidHttpServer server = startServer(18183, StupidHttpServer.ENGINE_BLOCKING, OK);
+		server.setKeepAliveTimeout(500);
+		try {
+			check("stalled request head times out", request(18183, "G"), 408);
+			String post = "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhe";
+			// the handler doesn't read the body, so it is answered; the connection is closed once skipping the rest of the body times out
+			check("stalled request body is cut off", exchange(18183, post, "\u0000"), "\r\n\r\nok");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * An exception from a handler must be answered with a 500 that closes the connection, on both engines.
+	 */
+	private static void handlerExceptionIsAnswered() throws Exception {
+		StupidHttpHandler failing = new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				throw new IllegalStateException("handler failed");
+			}
+		};
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final StupidHttpServer server = startServer(18184 + i, engines[i], failing);
+			try {
+				// read to the end of the connection, which is only reached if the server closes it
+				String response = exchange(18184 + i, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n", "\u0000");
+				check("handler exception is answered on engine " + engines[i], response, "HTTP/1.1 500");
+				check("handler exception closes the connection on engine " + engines[i], response, "handler failed");
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * A body writer that writes fewer or more bytes than it declared must not leave a persistent connection out of step.
+	 */
+	private static void bodyWriterLengthIsEnforced() throws Exception {
+		final StupidHttpServer server = startServer(18186, StupidHttpServer.ENGINE_BLOCKING, new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				StupidHttpResponse resp = new StupidHttpResponse();
+				resp.setBody(new StupidHttpBodyWriter() {
+					@Override
+					public void writeBody(OutputStream out) throws IOException {
+						out.write("hello".getBytes(StandardCharsets.US_ASCII));
+					}
+				}, Long.parseLong(req.getPath().substring(1)));
+				return resp;
+			}
+		});
+		server.setKeepAliveTimeout(2 * TIMEOUT); // so only a connection closed because of the writer ends before the client gives up
+		try {
+			// read to the end of the connection, which is only reached if the server closes it
+			check("short body writer closes the connection", exchange(18186, "GET /10 HTTP/1.1\r\nHost: localhost\r\n\r\n", "\u0000"), "Content-Length: 10\r\n");
+			String response = exchange(18186, "GET /3 HTTP/1.1\r\nHost: localhost\r\n\r\n", "\u0000");
+			check("long body writer closes the connection", response, "Content-Length: 3\r\n");
+			check("long body writer sends nothing past the declared length", response.endsWith("\r\n\r\n") ? "ok" : response, "ok");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * The 503 for a connection the saturated pool rejects must reach the client even if it already sent a request the server never read,
+	 * and it must be sent right away.
+	 */
+	private static void shedResponseIsDelivered() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final StupidHttpServer server = startServer(18187, StupidHttpServer.ENGINE_BLOCKING, new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return StupidHttpResponse.textResponse("ok");
+			}
+		});
+		server.useBoundedWorkerPool(1, 0);
+		Socket busy = new Socket(HOST, 18187);
+		try {
+			busy.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			Thread.sleep(200); // until the only worker is stuck in the handler
+			char[] body = new char[1024 * 32];
+			Arrays.fill(body, 'x');
+			String status;
+			try (Socket s = new Socket(HOST, 18187)) {
+				s.setSoTimeout(TIMEOUT);
+				s.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length + "\r\n\r\n" + new String(body)).getBytes(StandardCharsets.ISO_8859_1));
+				Thread.sleep(200); // a reset from the server arrives before the response is read
+				status = readLine(s.getInputStream());
+			} catch (IOException e) {
+				status = e.toString();
+			}
+			check("shed connection gets the 503", status, 503);
+			// silent clients must not slow down the acceptor, which answers each of them
+			long start = System.currentTimeMillis();
+			boolean all = true;
+			Socket[] silent = new Socket[20];
+			try {
+				for (int i = 0; i < silent.length; i++) {
+					silent[i] = new Socket(HOST, 18187); // kept open, so the server can't tell the client is done
+					silent[i].setSoTimeout(TIMEOUT);
+					all &= readLine(silent[i].getInputStream()).startsWith("HTTP/1.1 503 ");
+				}
+			} finally {
+				for (Socket s : silent) {
+					if (s != null) {
+						s.close();
+					}
+				}
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			check("silent shed connections are answered quickly", all && elapsed < 1000 ? "ok" : "503s: " + all + ", " + elapsed + " ms", "ok");
+		} finally {
+			release.countDown();
+			busy.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Under sustained overload, the concurrency limit must fall all the way to its minimum.
+	 */
+	private static void limiterReachesMinimum() throws Exception {
+		final int[] delay = { 1 };
+		StupidHttpConcurrencyLimiter limiter = new StupidHttpConcurrencyLimiter(new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				try {
+					Thread.sleep(delay[0]);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return StupidHttpResponse.textResponse("ok");
+			}
+		}, 4, 1, 1000); // the old update rule could never get below 4
+		for (int i = 0; i < 10; i++) {
+			limiter.handle(null); // the first window sets the baseline
+		}
+		delay[0] = 20; // well over twice the baseline, even if the baseline's sleeps overran
+		for (int i = 0; i < 300 && limiter.getLimit() > 1; i++) {
+			limiter.handle(null);
+		}
+		check("limit falls to the minimum under overload", limiter.getLimit() == 1 ? "ok" : "limit " + limiter.getLimit(), "ok");
+	}
+
+	/**
+	 * If-Modified-Since in the obsolete RFC 850 and asctime formats must still make a file response conditional.
+	 */
+	private static void obsoleteDatesAreConditional() throws Exception {
+		final File file = File.createTempFile("regression", ".txt");
+		file.deleteOnExit();
+		file.setLastModified(784111777000L); // Sun, 06 Nov 1994 08:49:37 GMT
+		final StupidHttpServer server = startServer(18188, StupidHttpServer.ENGINE_BLOCKING, new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				return StupidHttpResponse.fileResponse(req, file);
+			}
+		});
+		try {
+			String get = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nIf-Modified-Since: ";
+			check("IMF-fixdate is conditional", request(18188, get + "Sun, 06 Nov 1994 08:49:37 GMT\r\n\r\n"), 304);
+			check("RFC 850 date is conditional", request(18188, get + "Sunday, 06-Nov-94 08:49:37 GMT\r\n\r\n"), 304);
+			check("asctime date is conditional", request(18188, get + "Sun Nov  6 08:49:37 1994\r\n\r\n"), 304);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A request a proxy could frame differently must be rejected and the connection closed, so nothing after it is read as another request.
+	 */
+	private static void ambiguousFramingIsRejected() throws Exception {
+		String[] heads = {
+			"Content-Length: 5\r\nTransfer-Encoding: chunked\r\n",
+			"Transfer-Encoding: gzip, chunked\r\n",
+			"Transfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n",
+			"Content-Length: 1\r\nContent-Length: 20\r\n",
+			"Content-Length: +3\r\n",
+		};
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final StupidHttpServer server = startServer(18189 + i, engines[i], OK);
+			try {
+				for (String head : heads) {
+					String response = exchange(18189 + i, "POST /a HTTP/1.1\r\nHost: localhost\r\n" + head + "\r\n0\r\n\r\nGET /smuggled HTTP/1.1\r\nHost: localhost\r\n\r\n", "\u0000");
+					String name = head.trim().replace("\r\n", ", ") + " on engine " + engines[i];
+					check("rejected: " + name, response, "HTTP/1.0 400");
+					check("nothing smuggled: " + name, count(response, "HTTP/1.") == 1 ? "ok" : response, "ok");
+				}
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * A cached file without a gzip sidecar must not be looked for on the disk again before the check interval ends.
+	 */
+	private static void missingSidecarIsCached() throws Exception {
+		File file = File.createTempFile("regression", ".txt");
+		File sidecar = new File(file.getPath() + ".gz");
+		file.deleteOnExit();
+		sidecar.deleteOnExit();
+		Files.write(file.toPath(), "plain".getBytes(StandardCharsets.US_ASCII));
+		StupidHttpFileCache cache = new StupidHttpFileCache(1024 * 1024);
+		cache.setCheckInterval(60000);
+		StupidHttpFileHandler handler = new StupidHttpFileHandler(file);
+		handler.setPrecompressed(true);
+		handler.setCache(cache);
+		final StupidHttpServer server = startServer(18191, StupidHttpServer.ENGINE_BLOCKING, handler);
+		try {
+			String get = "GET / HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n";
+			check("file without a sidecar is served as is", exchange(18191, get, "\u0000"), "\r\n\r\nplain");
+			try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(sidecar))) {
+				out.write("plain".getBytes(StandardCharsets.US_ASCII));
+			}
+			String response = exchange(18191, get, "\u0000");
+			check("missing sidecar is remembered within the check interval", response.contains("Content-Encoding") ? response : "ok", "ok");
+			cache.setCheckInterval(0);
+			check("new sidecar is found once the check interval is over", exchange(18191, get, "\u0000"), "Content-Encoding: gzip\r\n");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A file whose type can't be guessed must be sent as application/octet-stream, in whole and in byterange parts.
+	 */
+	private static void unknownTypeIsOctetStream() throws Exception {
+		final File file = File.createTempFile("regression", ".zzz");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "0123456789".getBytes(StandardCharsets.US_ASCII));
+		final StupidHttpServer server = startServer(18192, StupidHttpServer.ENGINE_BLOCKING, new StupidHttpFileHandler(file));
+		try {
+			String get = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n";
+			String response = exchange(18192, get + "\r\n", "\u0000");
+			check("unknown type is sent as octet-stream", response, "Content-Type: application/octet-stream\r\n");
+			response = exchange(18192, get + "Range: bytes=0-1,4-5\r\n\r\n", "\u0000");
+			check("unknown type is sent as octet-stream in byterange parts", count(response, "Content-Type: application/octet-stream\r\n") == 2 ? "ok" : response, "ok");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * File handlers answer only GET and HEAD, and apply conditional and Range headers only to them.
+	 */
+	private static void fileHandlersOnlyRead() throws Exception {
+		final File file = File.createTempFile("regression", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "0123456789".getBytes(StandardCharsets.US_ASCII));
+		final StupidHttpFileHandler handler = new StupidHttpFileHandler(file);
+		final StupidHttpServer server = startServer(18193, StupidHttpServer.ENGINE_BLOCKING, handler);
+		try {
+			String head = " / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nRange: bytes=0-1\r\nIf-None-Match: *\r\n";
+			check("GET is conditional", request(18193, "GET" + head + "\r\n"), 304);
+			for (String method : new String[] { "PUT", "DELETE", "PATCH" }) {
+				String response = exchange(18193, method + head + "Content-Length: 0\r\n\r\n", "\u0000");
+				check(method + " is not allowed", response, "HTTP/1.1 405");
+				check(method + " is answered with Allow", response, "Allow: GET, HEAD\r\n");
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A response the client stops reading must be cut off, so the worker writing it is released.
+	 */
+	private static void stuckResponseIsAborted() throws Exception {
+		final CountDownLatch aborted = new CountDownLatch(1);
+		final StupidHttpServer server = startServer(18194, StupidHttpServer.ENGINE_NIO, new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				StupidHttpResponse resp = new StupidHttpResponse();
+				resp.setBody(new StupidHttpBodyWriter() {
+					@Override
+					public void writeBody(OutputStream out) throws IOException {
+						byte[] buf = new byte[1024 * 64];
+						try {
+							for (;;) {
+								out.write(buf);
+							}
+						} catch (IOException e) {
+							aborted.countDown();
+							throw e;
+						}
+					}
+				});
+				return resp;
+			}
+		});
+		server.setKeepAliveTimeout(500);
+		try (Socket s = new Socket(HOST, 18194)) {
+			s.setReceiveBufferSize(4096);
+			s.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			// never read
+			check("stuck response releases the worker", aborted.await(TIMEOUT, TimeUnit.MILLISECONDS) ? "ok" : "still writing", "ok");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A response that can't have a body must not describe one.
+	 */
+	private static void bodilessResponseHasNoEntityHeaders() throws Exception {
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final StupidHttpServer server = startServer(18195 + i, engines[i], StupidHttpStatus.statusHandler(StupidHttpStatus.NoContent));
+			try {
+				String response = exchange(18195 + i, "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n", "\u0000");
+				String name = " on engine " + engines[i];
+				check("204 is sent" + name, response, "HTTP/1.1 204");
+				check("204 has no content headers" + name, response.contains("Content-") ? response : "ok", "ok");
+				check("204 has no body" + name, response.endsWith("\r\n\r\n") ? "ok" : response, "ok");
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Connections stay open between requests unless the client or the request limit says otherwise,
+	 * and pipelined requests are answered in order.
+	 */
+	private static void connectionsArePersistent() throws Exception {
+		StupidHttpHandler path = new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				return StupidHttpResponse.textResponse("<" + req.getPath().substring(1) + ">");
+			}
+		};
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final int port = 18197 + i;
+			final StupidHttpServer server = startServer(port, engines[i], path);
+			server.setKeepAliveTimeout(2 * TIMEOUT); // a connection left open shows up as a read timeout
+			String name = " on engine " + engines[i];
+			try {
+				String response;
+				try (Socket s = new Socket(HOST, port)) {
+					s.setSoTimeout(TIMEOUT);
+					OutputStream out = s.getOutputStream();
+					InputStream in = s.getInputStream();
+					out.write("GET /one HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					StringBuilder sb = new StringBuilder();
+					int b;
+					while (sb.indexOf("<one>") < 0 && (b = in.read()) >= 0) {
+						sb.append((char) b);
+					}
+					out.write("GET /two HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					while ((b = in.read()) >= 0) {
+						sb.append((char) b);
+					}
+					response = sb.toString();
+				} catch (IOException e) {
+					response = e.toString();
+				}
+				check("second request on a kept-alive connection" + name, response, "<one>HTTP/1.1 200 OK\r\n");
+				check("Connection: close ends the connection" + name, response, "Connection: close\r\n");
+				check("Connection: close ends the connection" + name, response, "<two>");
+
+				String get = "GET /%d HTTP/1.1\r\nHost: localhost\r\n\r\n";
+				response = exchange(port, String.format(get + get + get, 1, 2, 3) + "GET /4 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n", "\u0000");
+				int one = response.indexOf("<1>"), two = response.indexOf("<2>"), three = response.indexOf("<3>"), four = response.indexOf("<4>");
+				check("pipelined requests are answered in order" + name, one >= 0 && one < two && two < three && three < four ? "ok" : response, "ok");
+
+				response = exchange(port, "GET /old HTTP/1.0\r\n\r\n", "\u0000");
+				check("HTTP/1.0 connection is closed" + name, response, "<old>");
+				response = exchange(port, "GET /a HTTP/1.0\r\nConnection: keep-alive\r\n\r\nGET /b HTTP/1.0\r\n\r\n", "\u0000");
+				check("HTTP/1.0 keep-alive is acknowledged" + name, response, "Connection: keep-alive\r\n");
+				check("HTTP/1.0 keep-alive is honored" + name, response, "<b>");
+
+				server.setMaxRequestsPerConnection(2);
+				response = exchange(port, String.format(get + get + get, 1, 2, 3), "\u0000");
+				check("request limit closes the connection" + name, response, "Connection: close\r\n\r\n<2>");
+				check("nothing is answered past the request limit" + name, response.contains("<3>") ? response : "ok", "ok");
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Chunked request bodies are decoded, also when they arrive in pieces, and the connection can be used again after them.
+	 */
+	private static void chunkedRequestsAreDecoded() throws Exception {
+		StupidHttpHandler echo = new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				return StupidHttpResponse.textResponse("[" + req.getBodyString() + "]");
+			}
+		};
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final int port = 18199 + i;
+			final StupidHttpServer server = startServer(port, engines[i], echo);
+			server.setKeepAliveTimeout(2 * TIMEOUT);
+			String name = " on engine " + engines[i];
+			String post = "POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n";
+			try {
+				String response = exchange(port, post + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\nGET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n", "\u0000");
+				check("chunked body is decoded" + name, response, "[hello world]");
+				check("request after a chunked body is read" + name, response, "[null]");
+
+				try (Socket s = new Socket(HOST, port)) {
+					s.setSoTimeout(TIMEOUT);
+					OutputStream out = s.getOutputStream();
+					out.write((post + "A\r\n01234").getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+					Thread.sleep(100);
+					out.write("56789\r".getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+					Thread.sleep(100);
+					out.write("\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					InputStream in = s.getInputStream();
+					StringBuilder sb = new StringBuilder();
+					int b;
+					while (sb.indexOf("]") < 0 && (b = in.read()) >= 0) {
+						sb.append((char) b);
+					}
+					response = sb.toString();
+				} catch (IOException e) {
+					response = e.toString();
+				}
+				check("chunked body arriving in pieces is decoded" + name, response, "[0123456789]");
+
+				response = exchange(port, post + "zz\r\nhello\r\n0\r\n\r\n", "\u0000");
+				check("malformed chunk size is rejected" + name, response, " 400 Bad Request\r\n");
+				check("malformed chunk size closes the connection" + name, response, "Connection: close\r\n");
+				server.setMaxBodyLength(8);
+				check("chunked body over the limit is rejected" + name, request(port, post + "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n"), 413);
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Streamed bodies of unknown length are chunked for HTTP/1.1 clients and delimited by closing the connection for HTTP/1.0 ones.
+	 */
+	private static void streamedResponsesAreChunked() throws Exception {
+		final char[] big = new char[1024 * 100]; // more than the NIO engine buffers for a response
+		Arrays.fill(big, 'x');
+		final String expected = "start" + new String(big) + "end";
+		StupidHttpHandler stream = new StupidHttpHandler() {
+			@Override
+			public StupidHttpResponse handle(StupidHttpRequest req) {
+				StupidHttpResponse resp = new StupidHttpResponse();
+				if (req.getPath().equals("/sized")) {
+					resp.setBody(new StupidHttpBodyWriter() {
+						@Override
+						public void writeBody(OutputStream out) throws IOException {
+							out.write("sized".getBytes(StandardCharsets.US_ASCII));
+						}
+					}, 5);
+					return resp;
+				}
+				resp.setBody(new StupidHttpBodyWriter() {
+					@Override
+					public void writeBody(OutputStream out) throws IOException {
+						out.write("start".getBytes(StandardCharsets.US_ASCII));
+						out.flush();
+						out.write(new String(big).getBytes(StandardCharsets.US_ASCII));
+						out.flush();
+						out.write("end".getBytes(StandardCharsets.US_ASCII));
+					}
+				});
+				return resp;
+			}
+		};
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final int port = 18201 + i;
+			final StupidHttpServer server = startServer(port, engines[i], stream);
+			server.setKeepAliveTimeout(2 * TIMEOUT);
+			String name = " on engine " + engines[i];
+			String close = "GET /sized HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+			try {
+				String response = exchange(port, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n" + close, "\u0000");
+				check("streamed body is chunked" + name, response, "Transfer-Encoding: chunked\r\n");
+				int end = response.indexOf("0\r\n\r\nHTTP/1.1 ");
+				String body = end < 0 ? null : dechunk(response.substring(response.indexOf("\r\n\r\n") + 4, end + 5));
+				check("chunked body is complete" + name, expected.equals(body) ? "ok" : "got " + (body == null ? "no last chunk" : body.length() + " bytes"), "ok");
+				check("connection is kept after a chunked body" + name, response, "\r\n\r\nsized");
+				check("body of known length is not chunked" + name, response, "Content-Length: 5\r\n");
+
+				response = exchange(port, "HEAD / HTTP/1.1\r\nHost: localhost\r\n\r\n" + close, "\u0000");
+				check("HEAD of a streamed body has no body" + name, !response.contains("xxxx") && response.contains("\r\n\r\nsized") ? "ok" : response, "ok");
+
+				response = exchange(port, "GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n", "\u0000");
+				check("HTTP/1.0 body is not chunked" + name, response.contains("Transfer-Encoding") ? response : "ok", "ok");
+				check("HTTP/1.0 body is delimited by closing" + name, response, "Connection: close\r\n");
+				check("HTTP/1.0 body is complete" + name, response.endsWith("\r\n\r\n" + expected) ? "ok" : response.length() + " bytes", "ok");
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Decode a chunked body ending with the last chunk.
+	 *
+	 * @return The decoded body; null if the chunks are malformed
+	 */
+	private static String dechunk(String chunked) {
+		StringBuilder sb = new StringBuilder();
+		int pos = 0;
+		for (;;) {
+			int eol = chunked.indexOf("\r\n", pos);
+			if (eol < 0) {
+				return null;
+			}
+			int size = Integer.parseInt(chunked.substring(pos, eol), 16);
+			if (size == 0) {
+				return chunked.startsWith("\r\n", eol + 2) ? sb.toString() : null;
+			}
+			if (eol + 2 + size + 2 > chunked.length() || !chunked.startsWith("\r\n", eol + 2 + size)) {
+				return null;
+			}
+			sb.append(chunked, eol + 2, eol + 2 + size);
+			pos = eol + 2 + size + 2;
+		}
+	}
+
+	/**
+	 * Files are answered with 304 when the client's copy is current, and with the requested byte ranges.
+	 */
+	private static void conditionalAndRangeRequests() throws Exception {
+		final File file = File.createTempFile("regression", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "0123456789".getBytes(StandardCharsets.US_ASCII));
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final int port = 18203 + i;
+			final StupidHttpServer server = startServer(port, engines[i], new StupidHttpFileHandler(file));
+			String name = " on engine " + engines[i];
+			String get = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n";
+			try {
+				String response = exchange(port, get + "\r\n", "\u0000");
+				String etag = header(response, "ETag");
+				String lastModified = header(response, "Last-Modified");
+				check("file has validators" + name, etag != null && lastModified != null ? "ok" : response, "ok");
+
+				response = exchange(port, get + "If-None-Match: \"other\", " + etag + "\r\n\r\n", "\u0000");
+				check("matching entity tag is not modified" + name, response, "HTTP/1.1 304");
+				check("304 carries the entity tag" + name, response, "ETag: " + etag + "\r\n");
+				check("304 has no body" + name, response.endsWith("\r\n\r\n") ? "ok" : response, "ok");
+				check("HEAD with a matching entity tag is not modified" + name, request(port, "HEAD / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nIf-None-Match: " + etag + "\r\n\r\n"), 304);
+				check("other entity tag is modified" + name, request(port, get + "If-None-Match: \"other\"\r\n\r\n"), 200);
+				check("If-None-Match overrides If-Modified-Since" + name, request(port, get + "If-None-Match: \"other\"\r\nIf-Modified-Since: " + lastModified + "\r\n\r\n"), 200);
+				check("unchanged since the date is not modified" + name, request(port, get + "If-Modified-Since: " + lastModified + "\r\n\r\n"), 304);
+				check("changed since the date is modified" + name, request(port, get + "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT\r\n\r\n"), 200);
+				check("invalid date is ignored" + name, request(port, get + "If-Modified-Since: yesterday\r\n\r\n"), 200);
+
+				String range = "GET / HTTP/1.1\r\nHost: localhost\r\nRange: %s\r\n\r\n";
+				response = exchange(port, String.format(range + range, "bytes=2-4", "bytes=-3") + get + "\r\n", "\u0000");
+				check("range is partial" + name, count(response, "HTTP/1.1 206 ") == 2 ? "ok" : response, "ok");
+				check("range is sent" + name, response, "Content-Range: bytes 2-4/10\r\nContent-Length: 3\r\n\r\n234HTTP/1.1");
+				check("suffix range is sent" + name, response, "Content-Range: bytes 7-9/10\r\nContent-Length: 3\r\n\r\n789HTTP/1.1");
+				check("connection is kept after ranges" + name, response, "\r\n\r\n0123456789");
+
+				response = exchange(port, get + "Range: bytes=20-\r\n\r\n", "\u0000");
+				check("unsatisfiable range is rejected" + name, response, "HTTP/1.1 416");
+				check("unsatisfiable range gives the length" + name, response, "Content-Range: bytes */10\r\n");
+				response = exchange(port, get + "Range: bytes=0-1,8-\r\n\r\n", "\u0000");
+				check("ranges are sent as multipart" + name, response, "Content-Type: multipart/byteranges; boundary=");
+				check("ranges are sent as multipart" + name, response, "Content-Range: bytes 0-1/10\r\n\r\n01\r\n--");
+				check("ranges are sent as multipart" + name, response, "Content-Range: bytes 8-9/10\r\n\r\n89\r\n--");
+				check("range with a matching If-Range is partial" + name, request(port, get + "Range: bytes=0-1\r\nIf-Range: " + etag + "\r\n\r\n"), 206);
+				check("range with a stale If-Range is whole" + name, request(port, get + "Range: bytes=0-1\r\nIf-Range: \"stale\"\r\n\r\n"), 200);
+				check("invalid range is ignored" + name, request(port, get + "Range: lines=1-2\r\n\r\n"), 200);
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Once the workers and the queue are full, further work is answered with 503 and Retry-After right away,
+	 * while the queued work is still served and the server recovers when the load drops.
+	 */
+	private static void overloadIsShed() throws Exception {
+		int[] engines = { StupidHttpServer.ENGINE_BLOCKING, StupidHttpServer.ENGINE_NIO };
+		for (int i = 0; i < engines.length; i++) {
+			final int port = 18205 + i;
+			final CountDownLatch release = new CountDownLatch(1);
+			final StupidHttpServer server = startServer(port, engines[i], new StupidHttpHandler() {
+				@Override
+				public StupidHttpResponse handle(StupidHttpRequest req) {
+					if (req.getPath().equals("/block")) {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					return StupidHttpResponse.textResponse("done " + req.getPath());
+				}
+			});
+			server.useBoundedWorkerPool(1, 1);
+			server.setRetryAfter(7);
+			String name = " on engine " + engines[i];
+			String get = "GET /%s HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+			Socket blocked = new Socket(HOST, port);
+			Socket queued = new Socket(HOST, port);
+			try {
+				blocked.setSoTimeout(TIMEOUT);
+				queued.setSoTimeout(TIMEOUT);
+				blocked.getOutputStream().write(String.format(get, "block").getBytes(StandardCharsets.ISO_8859_1));
+				Thread.sleep(200); // until the only worker is stuck in the handler
+				queued.getOutputStream().write(String.format(get, "queued").getBytes(StandardCharsets.ISO_8859_1));
+				Thread.sleep(200); // until the queue is full
+
+				long start = System.currentTimeMillis();
+				String response = exchange(port, String.format(get, "shed"), "\u0000");
+				long elapsed = System.currentTimeMillis() - start;
+				check("overload is shed" + name, response, "HTTP/1.1 503");
+				check("shed response gives Retry-After" + name, response, "Retry-After: 7\r\n");
+				check("shed response closes the connection" + name, response, "Connection: close\r\n");
+				check("shed request is not run" + name, response.contains("done") ? response : "ok", "ok");
+				check("overload is shed right away" + name, elapsed < 1000 ? "ok" : elapsed + " ms", "ok");
+				check("shed work is counted" + name, server.getRejectedTasks() > 0 ? "ok" : "no rejected tasks", "ok");
+
+				release.countDown();
+				check("blocked request is served" + name, readAll(blocked.getInputStream()), "done /block");
+				check("queued request is served" + name, readAll(queued.getInputStream()), "done /queued");
+				check("server recovers after the overload" + name, exchange(port, String.format(get, "after"), "\u0000"), "done /after");
+			} finally {
+				release.countDown();
+				blocked.close();
+				queued.close();
+				server.stop();
+			}
+		}
+	}
+
+	private static String readAll(InputStream in) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			int b;
+			while ((b = in.read()) >= 0) {
+				sb.append((char) b);
+			}
+		} catch (IOException e) {
+			sb.append(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The value of the first header of a response with the given name; null if there is none
+	 */
+	private static String header(String response, String name) {
+		int start = response.indexOf("\r\n" + name + ": ");
+		if (start < 0) {
+			return null;
+		}
+		start += name.length() + 4;
+		return response.substring(start, response.indexOf("\r\n", start));
+	}
+
+	private static StupidHttpServer startServer(int port, int engine, StupidHttpHandler handler) throws IOException {
+		final StupidHttpServer server = new StupidHttpServer(HOST, port);
+		server.setEngine(engine);
+		server.setEventLoopThreads(1);
+		server.setHandler(handler);
+		server.start();
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.listenAndServe();
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return server;
+	}
+
+	/**
+	 * Send a raw request on a new connection and read the response up to a terminator or the end of the connection.
+	 *
+	 * @return What was read; the exception if reading failed before the terminator
+	 */
+	private static String exchange(int port, String raw, String terminator) {
+		try (Socket s = new Socket(HOST, port)) {
+			s.setSoTimeout(TIMEOUT);
+			s.getOutputStream().write(raw.getBytes(StandardCharsets.ISO_8859_1));
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while (sb.indexOf(terminator, Math.max(0, sb.length() - terminator.length())) < 0 && (b = in.read()) >= 0) {
+				sb.append((char) b);
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	/**
+	 * Send a raw request on a new connection.
+	 *
+	 * @return The status line of the response; the exception if there was none
+	 */
+	private static String request(int port, String raw) {
+		try (Socket s = new Socket(HOST, port)) {
+			s.setSoTimeout(TIMEOUT);
+			OutputStream out = s.getOutputStream();
+			try {
+				out.write(raw.getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+			} catch (IOException e) {
+				// the server may answer and close before the whole request is sent
+			}
+			return readLine(s.getInputStream());
+		} catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			if (b != '\r') {
+				buf.write(b);
+			}
+		}
+		return buf.toString("ISO-8859-1");
+	}
+
+	private static int count(String s, String part) {
+		int n = 0;
+		for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+
+	private static void check(String name, String response, String expected) {
+		if (response.contains(expected)) {
+			System.out.println("ok   " + name);
+		} else {
+			System.out.println("FAIL " + name + ": " + response);
+			failures++;
+		}
+	}
+
+	private static void check(String name, String status, int code) {
+		if (status.startsWith("HTTP/1.") && status.indexOf(" " + code + " ") > 0) {
+			System.out.println("ok   " + name);
+		} else {
+			System.out.println("FAIL " + name + ": " + status);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package net.clsr.stupidhttp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * StupidHttpBody is the body data of a {@link StupidHttpResponse}.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+abstract class StupidHttpBody {
+	/**
+	 * @return The length of the body data in bytes; -1 if it is only known once it has been written
+	 */
+	abstract long length();
+
+	/**
+	 * Write the body data.
+	 * 
+	 * @param out The stream to write to
+	 * @param sink Where file regions and buffers are sent without copying them through the heap; null to write them to out
+	 * @throws IOException Exception while writing
+	 */
+	abstract void writeTo(OutputStream out, FileSink sink) throws IOException;
+
+	/**
+	 * Get a part of the body, for range requests.
+	 * Only bodies held in memory, mapped or read from files support it.
+	 * 
+	 * @param offset The offset of the part
+	 * @param length The length of the part
+	 * @return The part
+	 */
+	StupidHttpBody slice(long offset, long length) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return A read-only view of the body data; null if it isn't held in memory
+	 */
+	ByteBuffer view() {
+		return null;
+	}
+
+	/**
+	 * A destination for file regions and buffers that bypass the output stream, such as a socket channel written with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 * It receives them after everything written to the stream before them, so it must be flushed first.
+	 */
+	interface FileSink {
+		/**
+		 * Send a region of a file.
+		 * 
+		 * @param file The file; the sink closes it once the region has been sent or the connection failed
+		 * @param position The offset of the region in the file
+		 * @param count The length of the region
+		 * @throws IOException Exception while sending
+		 */
+		void sendFile(FileChannel file, long position, long count) throws IOException;
+
+		/**
+		 * Send the remaining content of a buffer, such as a memory-mapped file, without copying it.
+		 * 
+		 * @param buf The buffer; it is not shared, but its content must not change until it has been sent
+		 * @throws IOException Exception while sending
+		 */
+		void sendBuffer(ByteBuffer buf) throws IOException;
+	}
+
+	/**
+	 * Transfer a file region to a channel with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 * 
+	 * @param file The file
+	 * @param position The offset of the region in the file
+	 * @param count The length of the region
+	 * @param target The channel; if it is non-blocking, fewer bytes may be transferred
+	 * @return The number of bytes transferred
+	 * @throws IOException Exception while transferring, or the file is shorter than the region
+	 */
+	static long transfer(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+		long n = file.transferTo(position, count, target);
+		if (n == 0 && count > 0 && position >= file.size()) {
+			throw new IOException("file is shorter than the response body");
+		}
+		return n;
+	}
+
+	/**
+	 * A body held in memory.
+	 */
+	static class Bytes extends StupidHttpBody {
+		final byte[] data;
+		final int offset;
+		final int length;
+
+		Bytes(byte[] data) {
+			this(data, 0, data.length);
+		}
+
+		Bytes(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return A copy of the data
+		 */
+		byte[] toByteArray() {
+			return Arrays.copyOfRange(this.data, this.offset, this.offset + this.length);
+		}
+
+		@Override
+		long length() {
+			return this.length;
+		}
+
+		@Override
+		void writeTo(OutputStream out, FileSink sink) throws IOException {
+			out.write(this.data, this.offset, this.length);
+		}
+
+		@Override
+		ByteBuffer view() {
+			return ByteBuffer.wrap(this.data, this.offset, this.length).slice().asReadOnlyBuffer();
+		}
+
+		@Override
+		StupidHttpBody slice(long offset, long length) {
+			return new Bytes(this.data, this.offset + (int) offset, (int) length);
+		}
+	}
+
+	/**
+	 * A body held in a buffer, typically a direct or memory-mapped one outside of the heap.
+	 * Every write works on a duplicate, so the buffer can be shared by concurrent responses.
+	 */
+	static class Buffer extends StupidHttpBody {
+		private static final int SMALL_BUFFER = 1024 * 4; // copied into the stream along with the head, which saves a write to the socket
+		final ByteBuffer data;
+
+		Buffer(ByteBuffer data) {
+			this.data = data;
+		}
+
+		@Override
+		long length() {
+			return this.data.remaining();
+		}
+
+		@Override
+		void writeTo(OutputStream out, FileSink sink) throws IOException {
+			ByteBuffer buf = this.data.duplicate();
+			if (sink != null && buf.remaining() > SMALL_BUFFER) {
+				out.flush();
+				sink.sendBuffer(buf);
+				return;
+			}
+			if (buf.hasArray()) {
+				out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+				return;
+			}
+			WritableByteChannel target = Channels.newChannel(out);
+			while (buf.hasRemaining()) {
+				target.write(buf);
+			}
+		}
+
+		@Override
+		ByteBuffer view() {
+			return this.data.asReadOnlyBuffer();
+		}
+
+		@Override
+		StupidHttpBody slice(long offset, long length) {
+			ByteBuffer buf = this.data.duplicate();
+			buf.position(buf.position() + (int) offset);
+			buf.limit(buf.position() + (int) length);
+			return new Buffer(buf.slice());
+		}
+	}
+
+	/**
+	 * A body produced by a {@link StupidHttpBodyWriter} while it is sent.
+	 * If its length is known, the writer must write exactly that many bytes;
+	 * otherwise writing fails before anything past the length is sent, so the connection is closed instead of carrying on out of step with the client.
+	 */
+	static class Streamed extends StupidHttpBody {
+		final StupidHttpBodyWriter writer;
+		final long length;
+
+		Streamed(StupidHttpBodyWriter writer, long length) {
+			this.writer = writer;
+			this.length = length;
+		}
+
+		@Override
+		long length() {
+			return this.length;
+		}
+
+		@Override
+		void writeTo(OutputStream out, FileSink sink) throws IOException {
+			if (this.length < 0) {
+				this.writer.writeBody(out);
+				return;
+			}
+			LengthCheckingStream checked = new LengthCheckingStream(out, this.length);
+			this.writer.writeBody(checked);
+			if (checked.remaining != 0) {
+				throw new IOException("body writer wrote " + (this.length - checked.remaining) + " of " + this.length + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Passes at most a given number of bytes on to a stream and counts how many are left.
+	 */
+	private static class LengthCheckingStream extends OutputStream {
+		private final OutputStream out;
+		long remaining;
+
+		LengthCheckingStream(OutputStream out, long length) {
+			this.out = out;
+			this.remaining = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > this.remaining) {
+				throw new IOException("body writer wrote more than the declared length");
+			}
+			this.out.write(b, off, len);
+			this.remaining -= len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+	}
+
+	/**
+	 * A body read from a region of a file when it is sent.
+	 */
+	static class FileRegion extends StupidHttpBody {
+		final File file;
+		final long position;
+		final long length;
+
+		FileRegion(File file, long position, long length) {
+			this.file = file;
+			this.position = position;
+			this.length = length;
+		}
+
+		@Override
+		long length() {
+			return this.length;
+		}
+
+		@Override
+		void writeTo(OutputStream out, FileSink sink) throws IOException {
+			if (sink != null) {
+				out.flush();
+				sink.sendFile(FileChannel.open(this.file.toPath(), StandardOpenOption.READ), this.position, this.length);
+				return;
+			}
+			FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+			try {
+				WritableByteChannel target = Channels.newChannel(out);
+				for (long done = 0; done < this.length;) {
+					done += transfer(channel, this.position + done, this.length - done, target);
+				}
+			} finally {
+				channel.close();
+			}
+		}
+
+		@Override
+		StupidHttpBody slice(long offset, long length) {
+			return new FileRegion(this.file, this.position + offset, length);
+		}
+	}
+
+	/**
+	 * A body made of several parts written one after another.
+	 */
+	static class Composite extends StupidHttpBody {
+		final StupidHttpBody[] parts;
+
+		Composite(StupidHttpBody[] parts) {
+			this.parts = parts;
+		}
+
+		@Override
+		long length() {
+			long length = 0;
+			for (StupidHttpBody part : this.parts) {
+				if (part.length() < 0) {
+					return -1;
+				}
+				length += part.length();
+			}
+			return length;
+		}
+
+		@Override
+		void writeTo(OutputStream out, FileSink sink) throws IOException {
+			for (StupidHttpBody part : this.parts) {
+				part.writeTo(out, sink);
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package net.clsr.stupidhttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * StupidHttpBodyWriter produces a response body while it is being sent.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public interface StupidHttpBodyWriter {
+	/**
+	 * Write the body data.
+	 * The data is sent as it is written; {@link OutputStream#flush()} pushes out what was written so far.
+	 * The stream must not be closed.
+	 * 
+	 * @param out The stream to write the body to; wrap it with {@link java.nio.channels.Channels#newChannel(OutputStream)} to write ByteBuffers
+	 * @throws IOException Exception while writing; the connection is closed, as the response can't be completed
+	 */
+	public void writeBody(OutputStream out) throws IOException;
+}
@@ -0,0 +1,206 @@
+package net.clsr.stupidhttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * StupidHttpChunkedInputStream decodes a request body sent with "Transfer-Encoding: chunked".
+ * 
+ * The chunk framing is decoded one byte at a time as it arrives, so chunk data is passed on as soon as it has been received
+ * and no line has to be buffered.
+ * Chunk extensions and trailers are skipped.
+ * Chunk size lines are limited to 4 KB, trailers to {@link StupidHttpParser#MAX_HEAD_LENGTH} and the decoded body to a maximum length,
+ * which is checked against the declared size of every chunk before its data is read.
+ * 
+ * The underlying stream returning -1 means the body was cut off when reading blocks;
+ * the NIO engine uses {@link #drainTo(OutputStream)} instead, where it means that more data has to arrive first.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+class StupidHttpChunkedInputStream extends InputStream {
+	private static final int MAX_LINE_LENGTH = 1024 * 4; // 4 KB
+	private static final int MAX_SIZE_DIGITS = 15; // keeps the size from overflowing a long
+
+	private static final int SIZE = 0;
+	private static final int EXTENSION = 1;
+	private static final int DATA = 2;
+	private static final int DATA_END = 3;
+	private static final int TRAILER = 4;
+	private static final int DONE = 5;
+
+	private final InputStream in;
+	private final long maxLength;
+	private final byte[] single = new byte[1];
+	private int state = SIZE;
+	private long length = 0; // sum of the sizes of the chunks so far
+	private long remaining = 0; // size of the current chunk, then its unread data
+	private int digits = 0;
+	private int lineLength = 0;
+	private int lineBytes = 0; // bytes other than CR on the current trailer line
+	private int trailerLength = 0;
+	private IOException failure = null; // the framing can't be resynchronized after an error
+
+	/**
+	 * Create a decoder.
+	 * 
+	 * @param in The stream positioned at the first chunk
+	 * @param maxLength The maximum length of the decoded body
+	 */
+	StupidHttpChunkedInputStream(InputStream in, long maxLength) {
+		this.in = in;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Decode the buffered chunks without blocking.
+	 * 
+	 * @param out The stream to write the decoded data to
+	 * @return Whether the last chunk was reached; false if more data is needed
+	 * @throws IOException The chunks are invalid or too long
+	 */
+	boolean drainTo(OutputStream out) throws IOException {
+		byte[] buf = new byte[1024 * 8];
+		for (;;) {
+			int n = this.decode(buf, 0, buf.length);
+			if (n < 0) {
+				return true;
+			}
+			if (n == 0) {
+				return false;
+			}
+			out.write(buf, 0, n);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = this.read(this.single, 0, 1);
+		return n < 0 ? -1 : this.single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int n = this.decode(b, off, len);
+		if (n == 0) {
+			throw new IOException("unexpected end of body");
+		}
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.state == DATA ? (int) Math.min(this.in.available(), this.remaining) : 0;
+	}
+
+	/**
+	 * @return The number of bytes decoded, -1 after the last chunk, or 0 if the underlying stream had no more data
+	 */
+	private int decode(byte[] b, int off, int len) throws IOException {
+		if (this.failure != null) {
+			throw this.failure;
+		}
+		while (this.state != DATA) {
+			if (this.state == DONE) {
+				return -1;
+			}
+			int c = this.in.read();
+			if (c < 0) {
+				return 0;
+			}
+			try {
+				this.frame(c);
+			} catch (IOException e) {
+				this.failure = e;
+				throw e;
+			}
+		}
+		int n = this.in.read(b, off, (int) Math.min(len, this.remaining));
+		if (n <= 0) {
+			return 0;
+		}
+		this.remaining -= n;
+		if (this.remaining == 0) {
+			this.state = DATA_END;
+		}
+		return n;
+	}
+
+	/**
+	 * Advance the framing state by one byte outside chunk data.
+	 */
+	private void frame(int c) throws IOException {
+		switch (this.state) {
+		case SIZE:
+			if (++this.lineLength > MAX_LINE_LENGTH) {
+				throw invalid("chunk size line too long");
+			}
+			int digit = Character.digit(c, 16);
+			if (digit >= 0) {
+				if (++this.digits > MAX_SIZE_DIGITS) {
+					throw invalid("chunk size too large");
+				}
+				this.remaining = this.remaining * 16 + digit;
+				return;
+			}
+			if (this.digits == 0) {
+				throw invalid("invalid chunk size");
+			}
+			if (this.remaining > this.maxLength - this.length) {
+				StupidHttpException e = new StupidHttpException(StupidHttpException.BODY_TOO_LONG, "body too long: more than " + this.maxLength + " bytes");
+				throw new IOException(e.getMessage(), e);
+			}
+			this.length += this.remaining;
+			this.state = EXTENSION;
+			this.endSizeLine(c);
+			return;
+		case EXTENSION:
+			if (++this.lineLength > MAX_LINE_LENGTH) {
+				throw invalid("chunk size line too long");
+			}
+			this.endSizeLine(c);
+			return;
+		case DATA_END:
+			if (c == '\n') {
+				this.state = SIZE;
+				this.lineLength = 0;
+				this.digits = 0;
+			} else if (c != '\r' || ++this.lineLength > 1) {
+				throw invalid("missing CRLF after chunk data");
+			}
+			return;
+		case TRAILER:
+			if (++this.trailerLength > StupidHttpParser.MAX_HEAD_LENGTH) {
+				throw invalid("trailers too long");
+			}
+			if (c == '\n') {
+				if (this.lineBytes == 0) {
+					this.state = DONE;
+				}
+				this.lineBytes = 0;
+			} else if (c != '\r') {
+				this.lineBytes++;
+			}
+			return;
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private void endSizeLine(int c) {
+		if (c != '\n') {
+			return; // extensions, whitespace and the CR are skipped
+		}
+		this.lineLength = 0;
+		this.state = this.remaining == 0 ? TRAILER : DATA;
+	}
+
+	private static IOException invalid(String msg) {
+		StupidHttpException e = new StupidHttpException(StupidHttpException.INVALID_REQUEST, msg);
+		return new IOException(msg, e);
+	}
+}
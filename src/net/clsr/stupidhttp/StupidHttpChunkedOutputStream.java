@@ -0,0 +1,64 @@
+package net.clsr.stupidhttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StupidHttpChunkedOutputStream encodes a response body with "Transfer-Encoding: chunked".
+ * 
+ * Every write becomes one chunk, so it should be wrapped in a buffered stream to avoid tiny chunks.
+ * Flushing the buffered stream then sends the data written so far as a chunk.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+class StupidHttpChunkedOutputStream extends OutputStream {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private final OutputStream out;
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Create an encoder.
+	 * 
+	 * @param out The stream to write the chunks to
+	 */
+	StupidHttpChunkedOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.single[0] = (byte) b;
+		this.write(this.single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return; // an empty chunk would end the body
+		}
+		this.out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+		this.out.write(CRLF);
+		this.out.write(b, off, len);
+		this.out.write(CRLF);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	/**
+	 * Write the last chunk, which ends the body.
+	 * The underlying stream is not closed.
+	 * 
+	 * @throws IOException Exception from the underlying stream
+	 */
+	void finish() throws IOException {
+		this.out.write(LAST_CHUNK);
+		this.out.flush();
+	}
+}
@@ -0,0 +1,241 @@
+package net.clsr.stupidhttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * StupidHttpCompression negotiates content codings with Accept-Encoding and compresses response bodies.
+ * 
+ * Deflaters hold native memory that is only freed by {@link Deflater#end()}, so they are reset and kept in a small pool shared by all threads
+ * rather than created for every response.
+ * The pool isn't per thread, since virtual threads are created for every connection and would never reuse one.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+final class StupidHttpCompression {
+	static final StupidHttpHeader VARY = new StupidHttpHeader("vary", "Accept-Encoding");
+	private static final int POOL_SIZE = 32; // more deflaters are created when needed, but ended when returned to a full pool
+	private static final BlockingQueue<Deflater> gzipPool = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	private static final BlockingQueue<Deflater> deflatePool = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff }; // no name or time, unknown OS
+
+	private StupidHttpCompression() {}
+
+	/**
+	 * Check whether a content coding is acceptable to the client (RFC 7231 section 5.3.4).
+	 * 
+	 * @param req The request
+	 * @param coding The content coding, such as "gzip"
+	 * @return Whether the Accept-Encoding header lists the coding, or "*", with a non-zero quality
+	 */
+	static boolean accepts(StupidHttpRequest req, String coding) {
+		String header = req.getHeader("accept-encoding");
+		if (header == null) {
+			return false;
+		}
+		int wildcard = -1;
+		for (String item : header.split(",")) {
+			int semi = item.indexOf(';');
+			String name = (semi < 0 ? item : item.substring(0, semi)).trim();
+			boolean acceptable = semi < 0 || !isZero(item.substring(semi + 1));
+			if (name.equalsIgnoreCase(coding) || (coding.equals("gzip") && name.equalsIgnoreCase("x-gzip"))) {
+				return acceptable;
+			}
+			if (name.equals("*")) {
+				wildcard = acceptable ? 1 : 0;
+			}
+		}
+		return wildcard == 1;
+	}
+
+	/**
+	 * @param params The parameters after the coding, such as " q=0.5"
+	 * @return Whether the quality is zero
+	 */
+	private static boolean isZero(String params) {
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+				try {
+					return Double.parseDouble(param.substring(2).trim()) <= 0;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param type The content type, possibly with parameters
+	 * @return Whether content of that type is text-like and worth compressing; images, audio, video and archives are compressed already
+	 */
+	static boolean isCompressible(String type) {
+		if (type == null) {
+			return false;
+		}
+		type = type.toLowerCase(Locale.ROOT);
+		return type.startsWith("text/") || type.contains("json") || type.contains("javascript") || type.contains("xml") || type.startsWith("application/wasm");
+	}
+
+	/**
+	 * Derive the entity tag of an encoded variant, which must differ from the tag of the unencoded content.
+	 * 
+	 * @param etag The entity tag of the unencoded content, including quotes
+	 * @param coding The content coding
+	 * @return The entity tag of the variant
+	 */
+	static String variantETag(String etag, String coding) {
+		return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+	}
+
+	/**
+	 * Compress data with gzip.
+	 * 
+	 * @param data The data
+	 * @param offset The offset of the data in the array
+	 * @param length The length of the data
+	 * @return The compressed data
+	 */
+	static byte[] gzip(byte[] data, int offset, int length) {
+		return compress(data, offset, length, "gzip", Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Compress data held in memory.
+	 * 
+	 * @param data The data
+	 * @param offset The offset of the data in the array
+	 * @param length The length of the data
+	 * @param coding The content coding, "gzip" or "deflate"
+	 * @param level The compression level, see {@link Deflater#setLevel(int)}
+	 * @return The compressed data
+	 */
+	static byte[] compress(byte[] data, int offset, int length, String coding, int level) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+		try {
+			Encoder out = new Encoder(bytes, coding, level);
+			out.write(data, offset, length);
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // writing to memory doesn't fail
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A stream compressing data with a pooled deflater in the gzip (RFC 1952) or deflate (zlib, RFC 1950) format.
+	 * Flushing it flushes the data compressed so far, so streamed bodies aren't held back.
+	 * Closing it finishes the compressed data and returns the deflater to the pool, but leaves the underlying stream open.
+	 */
+	static final class Encoder extends DeflaterOutputStream {
+		private final boolean gzip;
+		private final CRC32 crc;
+		private boolean closed = false;
+
+		/**
+		 * @param out The stream to write the compressed data to
+		 * @param coding The content coding, "gzip" or "deflate"
+		 * @param level The compression level, see {@link Deflater#setLevel(int)}
+		 * @throws IOException Exception while writing the gzip header
+		 */
+		Encoder(OutputStream out, String coding, int level) throws IOException {
+			super(out, acquire(coding.equals("gzip"), level), 1024 * 8, true);
+			this.gzip = coding.equals("gzip");
+			this.crc = this.gzip ? new CRC32() : null;
+			if (this.gzip) {
+				out.write(GZIP_HEADER);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.ensureOpen();
+			super.write(b, off, len);
+			if (this.gzip) {
+				this.crc.update(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.ensureOpen();
+			super.flush();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.ensureOpen();
+			if (this.def.finished()) {
+				return;
+			}
+			super.finish();
+			if (this.gzip) {
+				writeInt(this.out, (int) this.crc.getValue());
+				writeInt(this.out, (int) this.def.getBytesRead()); // the length modulo 2^32
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			try {
+				this.finish();
+				this.out.flush();
+			} finally {
+				this.closed = true;
+				release(this.def, this.gzip);
+			}
+		}
+
+		/**
+		 * Return the deflater to the pool without finishing the compressed data, after the data being compressed failed.
+		 */
+		void discard() {
+			if (!this.closed) {
+				this.closed = true;
+				release(this.def, this.gzip);
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if (this.closed) {
+				throw new IOException("stream closed"); // the deflater may already be used by another stream
+			}
+		}
+
+		private static void writeInt(OutputStream out, int v) throws IOException {
+			out.write(v & 0xff);
+			out.write((v >> 8) & 0xff);
+			out.write((v >> 16) & 0xff);
+			out.write((v >> 24) & 0xff);
+		}
+	}
+
+	private static Deflater acquire(boolean gzip, int level) {
+		Deflater def = (gzip ? gzipPool : deflatePool).poll();
+		if (def == null) {
+			def = new Deflater(level, gzip); // gzip wraps raw deflate data in its own header and trailer
+		} else {
+			def.setLevel(level);
+		}
+		return def;
+	}
+
+	private static void release(Deflater def, boolean gzip) {
+		def.reset();
+		if (!(gzip ? gzipPool : deflatePool).offer(def)) {
+			def.end();
+		}
+	}
+}
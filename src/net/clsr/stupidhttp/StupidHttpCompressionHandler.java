@@ -0,0 +1,155 @@
+package net.clsr.stupidhttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * StupidHttpCompressionHandler implements a {@link StupidHttpHandler} that compresses the responses of another handler.
+ * 
+ * A response is compressed with gzip, or deflate if the client doesn't accept gzip, when its content type is text-like
+ * (text, JSON, JavaScript, XML) and its body is at least a minimum length.
+ * Bodies held in memory are compressed before the response is sent, keeping the Content-Length header;
+ * streamed bodies are compressed while they are written and sent chunked.
+ * Responses that are already encoded, partial, without a body, marked "Cache-Control: no-transform" or serving files are left alone;
+ * static files are better served precompressed (see {@link StupidHttpFileHandler#setPrecompressed(boolean)}).
+ * 
+ * Compressible responses get "Vary: Accept-Encoding" whether they are compressed or not, and an entity tag marked with the content coding.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public class StupidHttpCompressionHandler implements StupidHttpHandler {
+	private final StupidHttpHandler handler;
+	private volatile int minLength = 1024; // smaller bodies barely shrink, and may even grow with the gzip framing
+	private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param handler The handler whose responses are compressed
+	 */
+	public StupidHttpCompressionHandler(StupidHttpHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Sets the length of the smallest body that is compressed; the default is 1 KB.
+	 * Streamed bodies of unknown length are always compressed.
+	 * 
+	 * @param minLength The length in bytes
+	 */
+	public void setMinLength(int minLength) {
+		this.minLength = minLength;
+	}
+
+	/**
+	 * Sets the compression level; the default is {@link Deflater#DEFAULT_COMPRESSION}.
+	 * 
+	 * @param level The level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public void setLevel(int level) {
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+
+	@Override
+	public StupidHttpResponse handle(StupidHttpRequest req) {
+		StupidHttpResponse resp = this.handler.handle(req);
+		StupidHttpBody body = resp == null ? null : resp.getBodyData();
+		if (body == null || !this.isCompressible(resp, body)) {
+			return resp;
+		}
+		addVary(resp);
+
+		String coding = StupidHttpCompression.accepts(req, "gzip") ? "gzip" : StupidHttpCompression.accepts(req, "deflate") ? "deflate" : null;
+		if (coding == null) {
+			return resp;
+		}
+		if (body instanceof StupidHttpBody.Bytes) {
+			StupidHttpBody.Bytes bytes = (StupidHttpBody.Bytes) body;
+			byte[] data = StupidHttpCompression.compress(bytes.data, bytes.offset, bytes.length, coding, this.level);
+			if (data.length >= bytes.length) {
+				return resp;
+			}
+			body = new StupidHttpBody.Bytes(data);
+		} else {
+			body = new StupidHttpBody.Streamed(new Compressor(((StupidHttpBody.Streamed) body).writer, coding, this.level), -1);
+		}
+		resp.setBody(body);
+		resp.setHeader(new StupidHttpHeader("content-encoding", coding));
+		resp.removeHeaders("accept-ranges");
+		StupidHttpHeader[] etags = resp.getHeaders("etag");
+		if (etags.length == 1 && etags[0].getValue().endsWith("\"")) {
+			resp.setHeader(new StupidHttpHeader("etag", StupidHttpCompression.variantETag(etags[0].getValue(), coding)));
+		}
+		return resp;
+	}
+
+	private boolean isCompressible(StupidHttpResponse resp, StupidHttpBody body) {
+		int code = resp.getCode();
+		if (code < 200 || code == StupidHttpStatus.NoContent || code == StupidHttpStatus.PartialContent || code == StupidHttpStatus.NotModified) {
+			return false;
+		}
+		if (!(body instanceof StupidHttpBody.Bytes) && !(body instanceof StupidHttpBody.Streamed)) {
+			return false; // files and other bodies sent without copying
+		}
+		if (body.length() >= 0 && body.length() < this.minLength) {
+			return false;
+		}
+		if (resp.getHeaders("content-encoding").length > 0) {
+			return false;
+		}
+		for (StupidHttpHeader h : resp.getHeaders("cache-control")) {
+			if (h.getValue().toLowerCase(Locale.ROOT).contains("no-transform")) {
+				return false;
+			}
+		}
+		StupidHttpHeader[] types = resp.getHeaders("content-type");
+		return types.length > 0 && StupidHttpCompression.isCompressible(types[0].getValue());
+	}
+
+	private static void addVary(StupidHttpResponse resp) {
+		StupidHttpHeader[] vary = resp.getHeaders("vary");
+		if (vary.length == 0) {
+			resp.addHeader(StupidHttpCompression.VARY);
+			return;
+		}
+		for (StupidHttpHeader h : vary) {
+			String value = h.getValue().toLowerCase(Locale.ROOT);
+			if (value.contains("accept-encoding") || value.trim().equals("*")) {
+				return;
+			}
+		}
+		resp.setHeader(new StupidHttpHeader("vary", vary[0].getValue() + ", Accept-Encoding"));
+	}
+
+	/**
+	 * Compresses the body of a writer while it is written.
+	 */
+	private static class Compressor implements StupidHttpBodyWriter {
+		private final StupidHttpBodyWriter writer;
+		private final String coding;
+		private final int level;
+
+		Compressor(StupidHttpBodyWriter writer, String coding, int level) {
+			this.writer = writer;
+			this.coding = coding;
+			this.level = level;
+		}
+
+		@Override
+		public void writeBody(OutputStream out) throws IOException {
+			StupidHttpCompression.Encoder encoder = new StupidHttpCompression.Encoder(out, this.coding, this.level);
+			try {
+				this.writer.writeBody(encoder);
+				encoder.close();
+			} finally {
+				encoder.discard();
+			}
+		}
+	}
+}
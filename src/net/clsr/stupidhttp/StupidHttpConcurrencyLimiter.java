@@ -0,0 +1,167 @@
+package net.clsr.stupidhttp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StupidHttpConcurrencyLimiter implements a {@link StupidHttpHandler} that limits how many requests another handler serves at once.
+ * 
+ * The limit adapts to the measured latency of the wrapped handler.
+ * Latencies are averaged over windows of about as many requests as the limit allows,
+ * and the average of each window is compared to a baseline that follows the lowest latencies quickly and higher ones only slowly:
+ * while the average stays within twice the baseline, the limit grows by a small headroom; when it rises further (a database slows down, the CPU saturates),
+ * the limit shrinks in proportion, down to the minimum, so excess requests are rejected with {@link StupidHttpStatus#ServiceUnavailable} instead of queuing
+ * and tail latency stays stable.
+ * 
+ * It can wrap a single route in a {@link StupidHttpMuxer} or the whole server handler.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public class StupidHttpConcurrencyLimiter implements StupidHttpHandler {
+	private static final int MIN_WINDOW = 10;
+	private static final double BASELINE_SMOOTHING_DOWN = 0.5;
+	private static final double BASELINE_SMOOTHING_UP = 0.001;
+	private static final double TOLERANCE = 2.0;
+	private static final double LIMIT_SMOOTHING = 0.2;
+	private static final double MIN_GRADIENT = 0.5;
+
+	private final StupidHttpHandler handler;
+	private final int minLimit;
+	private final int maxLimit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile int retryAfter = 1;
+	// guards the fields below; held for a few steps of arithmetic
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile double limit;
+	private double baseline = 0;
+	private long windowLatency = 0;
+	private int windowSamples = 0;
+	private int windowMaxInFlight = 0;
+
+	/**
+	 * Creates a new limiter with an initial limit of 10 concurrent requests, adapting between 1 and 1000.
+	 * 
+	 * @param handler The handler to limit
+	 */
+	public StupidHttpConcurrencyLimiter(StupidHttpHandler handler) {
+		this(handler, 10, 1, 1000);
+	}
+
+	/**
+	 * Creates a new limiter.
+	 * 
+	 * @param handler The handler to limit
+	 * @param initialLimit The number of concurrent requests allowed before any latency was measured
+	 * @param minLimit The lowest the limit may fall to
+	 * @param maxLimit The highest the limit may grow to
+	 */
+	public StupidHttpConcurrencyLimiter(StupidHttpHandler handler, int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("invalid limits");
+		}
+		this.handler = handler;
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * @return The current concurrency limit
+	 */
+	public int getLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * @return The number of requests the wrapped handler is currently serving
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * @return The number of requests rejected because the limit was reached
+	 */
+	public long getRejected() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * Sets the Retry-After value of rejected requests.
+	 * The default is 1 second.
+	 * 
+	 * @param seconds The number of seconds clients should wait before retrying
+	 */
+	public void setRetryAfter(int seconds) {
+		this.retryAfter = seconds;
+	}
+
+	/**
+	 * Serves the request with the wrapped handler if the limit allows it, otherwise responds with {@link StupidHttpStatus#ServiceUnavailable}.
+	 */
+	@Override
+	public StupidHttpResponse handle(StupidHttpRequest req) {
+		int n;
+		do {
+			n = this.inFlight.get();
+			if (n >= (int) this.limit) {
+				this.rejected.incrementAndGet();
+				return this.rejectResponse();
+			}
+		} while (!this.inFlight.compareAndSet(n, n + 1));
+
+		long start = System.nanoTime();
+		try {
+			return this.handler.handle(req);
+		} finally {
+			this.inFlight.decrementAndGet();
+			this.update(System.nanoTime() - start, n + 1);
+		}
+	}
+
+	private void update(long latency, int inFlight) {
+		this.lock.lock();
+		try {
+			this.windowLatency += latency;
+			this.windowSamples++;
+			this.windowMaxInFlight = Math.max(this.windowMaxInFlight, inFlight);
+			if (this.windowSamples < Math.max(MIN_WINDOW, (int) this.limit)) {
+				return;
+			}
+			double average = (double) this.windowLatency / this.windowSamples;
+			int maxInFlight = this.windowMaxInFlight;
+			this.windowLatency = 0;
+			this.windowSamples = 0;
+			this.windowMaxInFlight = 0;
+			if (this.baseline == 0) {
+				this.baseline = average;
+				return;
+			}
+			// drift up slowly, so a handler that legitimately got slower is eventually accepted as the new normal
+			this.baseline += (average - this.baseline) * (average < this.baseline ? BASELINE_SMOOTHING_DOWN : BASELINE_SMOOTHING_UP);
+
+			double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * this.baseline / average));
+			if (gradient == 1.0 && maxInFlight < this.limit / 2) {
+				return; // not enough load to tell whether a higher limit would be sustainable
+			}
+			// the headroom fades out as latency rises, otherwise it would hold the limit at 4 under sustained overload, above a lower minLimit
+			double headroom = Math.sqrt(this.limit) * (gradient - MIN_GRADIENT) / (1.0 - MIN_GRADIENT);
+			double newLimit = this.limit * gradient + headroom;
+			newLimit = this.limit * (1 - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING;
+			this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, newLimit));
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private StupidHttpResponse rejectResponse() {
+		StupidHttpResponse resp = new StupidHttpResponse();
+		resp.setCode(StupidHttpStatus.ServiceUnavailable);
+		resp.setBody(String.format("%d %s", StupidHttpStatus.ServiceUnavailable, StupidHttpStatus.statusText(StupidHttpStatus.ServiceUnavailable)));
+		resp.setHeader(new StupidHttpHeader("retry-after", Integer.toString(this.retryAfter)));
+		return resp;
+	}
+}
@@ -3,9 +3,10 @@ package net.clsr.stupidhttp;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
-import java.util.TimeZone;
+import java.util.Locale;
 
 /**
  * StupidHttpCookie represents a HTTP cookie key=value pair.
@@ -14,10 +15,8 @@ import java.util.TimeZone;
  * @version 1.0
  */
 public class StupidHttpCookie {
-	private static final SimpleDateFormat COOKIE_EXPIRES_FORMAT = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss zzz");
-	static {
-		COOKIE_EXPIRES_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-	}
+	// immutable and thread-safe, unlike SimpleDateFormat, so concurrent responses can't corrupt each other's dates
+	private static final DateTimeFormatter COOKIE_EXPIRES_FORMAT = DateTimeFormatter.ofPattern("EEE, dd-MMM-yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 	private final String key;
 	private final String value;
 	private final Date expires;
@@ -127,7 +126,7 @@ public class StupidHttpCookie {
 	 * @return The expiration date encoded for use in the Cookie header
 	 */
 	public String getEncodedExpires() {
-		return this.encode(COOKIE_EXPIRES_FORMAT.format(this.expires));
+		return this.encode(COOKIE_EXPIRES_FORMAT.format(this.expires.toInstant()));
 	}
 
 	/**
@@ -0,0 +1,89 @@
+package net.clsr.stupidhttp;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * StupidHttpDate formats and parses HTTP dates (RFC 9110 section 5.6.7), such as "Sun, 06 Nov 1994 08:49:37 GMT".
+ * The obsolete RFC 850 and asctime formats are accepted too, as recipients must.
+ * 
+ * The Date header of every response is formatted at most once per second:
+ * the header for the current second is kept in a volatile field and read without locking,
+ * and whichever thread first notices that the second has changed formats the next one.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+final class StupidHttpDate {
+	// immutable and thread-safe, unlike SimpleDateFormat
+	private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	// the obsolete formats without the weekday, which is skipped: "06-Nov-94 08:49:37 GMT" (RFC 850) and "Nov  6 08:49:37 1994" (asctime)
+	private static final DateTimeFormatter RFC_850 = DateTimeFormatter.ofPattern("dd-MMM-yy HH:mm:ss 'GMT'", Locale.US);
+	private static final DateTimeFormatter ASCTIME = DateTimeFormatter.ofPattern("MMM ppd HH:mm:ss yyyy", Locale.US);
+	private static volatile Cached current = new Cached(System.currentTimeMillis() / 1000);
+
+	private StupidHttpDate() {}
+
+	/**
+	 * @return The Date header for the current second, shared by all responses created during it
+	 */
+	static StupidHttpHeader header() {
+		long second = System.currentTimeMillis() / 1000;
+		Cached cached = current;
+		if (cached.second != second) {
+			cached = new Cached(second);
+			current = cached; // racing threads format the same second, so any of them may win
+		}
+		return cached.header;
+	}
+
+	/**
+	 * @param millis The time in milliseconds since the epoch
+	 * @return The time as a HTTP date
+	 */
+	static String format(long millis) {
+		return FORMAT.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * @param date A HTTP date
+	 * @return The date in seconds since the epoch; -1 if it isn't a valid HTTP date
+	 */
+	static long parse(String date) {
+		date = date.trim();
+		try {
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+		} catch (DateTimeParseException e) {}
+		try {
+			int comma = date.indexOf(',');
+			if (comma >= 0) {
+				LocalDateTime t = LocalDateTime.parse(date.substring(comma + 1).trim(), RFC_850);
+				// a two-digit year more than 50 years in the future is in the past century (RFC 9110 section 5.6.7)
+				if (t.getYear() > LocalDateTime.now(ZoneOffset.UTC).getYear() + 50) {
+					t = t.minusYears(100);
+				}
+				return t.toEpochSecond(ZoneOffset.UTC);
+			}
+			int space = date.indexOf(' ');
+			if (space >= 0) {
+				return LocalDateTime.parse(date.substring(space + 1), ASCTIME).toEpochSecond(ZoneOffset.UTC);
+			}
+		} catch (DateTimeParseException e) {}
+		return -1;
+	}
+
+	private static final class Cached {
+		final long second;
+		final StupidHttpHeader header;
+
+		Cached(long second) {
+			this.second = second;
+			this.header = new StupidHttpHeader("date", format(second * 1000));
+		}
+	}
+}
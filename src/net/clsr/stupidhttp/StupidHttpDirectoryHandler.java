@@ -0,0 +1,179 @@
+package net.clsr.stupidhttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StupidHttpDirectoryHandler implements a {@link StupidHttpHandler} that serves the files in a directory.
+ * 
+ * It is registered on a directory path of a {@link StupidHttpMuxer}, such as "/static/", and maps the rest of the request path to a file under its root directory:
+ * "/static/css/site.css" is served from "root/css/site.css".
+ * Path segments are percent-decoded one by one; segments that are "." or "..", contain a slash, a backslash or a NUL,
+ * or start with a dot (hidden files such as .git or .htpasswd) are answered with {@link StupidHttpStatus#NotFound},
+ * so no request can reach a file outside the root.
+ * Symbolic links inside the root are followed.
+ * 
+ * A request for a directory is answered with its index file, "index.html" by default, and a directory path without a trailing slash is redirected to one with it.
+ * There are no directory listings.
+ * Only GET and HEAD requests are served; other methods are answered with {@link StupidHttpStatus#MethodNotAllowed}.
+ * 
+ * Files are served like {@link StupidHttpResponse#fileResponse(StupidHttpRequest, File)}, with Range and conditional requests;
+ * gzip sidecars are served to clients that accept them if enabled (see {@link #setPrecompressed(boolean)}),
+ * and with a {@link StupidHttpFileCache}, small files are kept in memory and large ones can be memory-mapped (see {@link StupidHttpFileCache#setMaxMappedSize(long)}).
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public class StupidHttpDirectoryHandler implements StupidHttpHandler {
+	private final String prefix;
+	private final File root;
+	private volatile String[] indexFiles = { "index.html" };
+	private volatile StupidHttpFileCache cache = null;
+	private volatile boolean precompressed = false;
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param prefix The directory path the handler is registered on, such as "/static/"
+	 * @param root The directory to serve
+	 */
+	public StupidHttpDirectoryHandler(String prefix, String root) {
+		this(prefix, new File(root));
+	}
+
+	/**
+	 * Creates a new handler.
+	 * 
+	 * @param prefix The directory path the handler is registered on, such as "/static/"
+	 * @param root The directory to serve
+	 */
+	public StupidHttpDirectoryHandler(String prefix, File root) {
+		if (!prefix.endsWith("/")) {
+			throw new IllegalArgumentException("the prefix must be a directory path ending with /");
+		}
+		this.prefix = prefix;
+		this.root = root.getAbsoluteFile();
+	}
+
+	/**
+	 * Sets the files that are served for a directory, tried in order.
+	 * 
+	 * @param indexFiles The file names; none to answer directories with {@link StupidHttpStatus#NotFound}
+	 */
+	public void setIndexFiles(String... indexFiles) {
+		this.indexFiles = indexFiles.clone();
+	}
+
+	/**
+	 * Sets whether a gzip sidecar, "file.gz" next to a file, is served instead of the file to clients that accept gzip.
+	 * The sidecar is sent with a Content-Encoding header, and responses get a Vary header, so caches keep both variants apart.
+	 * 
+	 * @param precompressed Whether to look for gzip sidecars
+	 */
+	public void setPrecompressed(boolean precompressed) {
+		this.precompressed = precompressed;
+	}
+
+	/**
+	 * Sets a cache to serve the files from memory.
+	 * 
+	 * @param cache The cache; null to read the files on every request
+	 */
+	public void setCache(StupidHttpFileCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public StupidHttpResponse handle(StupidHttpRequest req) {
+		String path = req.getPath();
+		if (!path.startsWith(this.prefix)) {
+			return StupidHttpResponse.notFoundResponse(path);
+		}
+		if (!StupidHttpFiles.isReadMethod(req)) {
+			return StupidHttpFiles.methodNotAllowedResponse();
+		}
+		File file = this.resolve(path.substring(this.prefix.length()));
+		if (file == null) {
+			return StupidHttpResponse.notFoundResponse(path);
+		}
+
+		if (path.endsWith("/")) {
+			for (String name : this.indexFiles) {
+				StupidHttpResponse resp = this.serve(req, new File(file, name));
+				if (resp.getCode() != StupidHttpStatus.NotFound) {
+					return resp;
+				}
+			}
+			return StupidHttpResponse.notFoundResponse(path);
+		}
+
+		StupidHttpResponse resp = this.serve(req, file);
+		if (resp.getCode() == StupidHttpStatus.NotFound && file.isDirectory()) { // only checked for misses, so cache hits don't touch the disk
+			String query = req.getQueryString();
+			return StupidHttpResponse.redirectResponse(path + "/" + (query == null ? "" : "?" + query));
+		}
+		return resp;
+	}
+
+	private StupidHttpResponse serve(StupidHttpRequest req, File file) {
+		StupidHttpFileCache cache = this.cache;
+		if (cache != null) {
+			return cache.fileResponse(req, file, false, this.precompressed);
+		}
+		return StupidHttpFiles.fileResponse(req, file, null, this.precompressed);
+	}
+
+	/**
+	 * Map a path relative to the prefix to a file under the root.
+	 * 
+	 * @param path The percent-encoded path
+	 * @return The file or directory; null if the path is invalid or would leave the root
+	 */
+	private File resolve(String path) {
+		File file = this.root;
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty()) {
+				continue;
+			}
+			segment = percentDecode(segment);
+			if (segment == null || segment.startsWith(".") || segment.indexOf('/') >= 0 || segment.indexOf('\\') >= 0 || segment.indexOf('\0') >= 0) {
+				return null;
+			}
+			file = new File(file, segment);
+		}
+		if (!file.toPath().normalize().startsWith(this.root.toPath())) { // drive letters and other platform quirks
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * @return The decoded string; null if an escape is invalid
+	 */
+	static String percentDecode(String s) {
+		if (s.indexOf('%') < 0) {
+			return s;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != '%') {
+				byte[] b = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+				bytes.write(b, 0, b.length);
+				continue;
+			}
+			if (i + 2 >= s.length()) {
+				return null;
+			}
+			int hi = Character.digit(s.charAt(i + 1), 16);
+			int lo = Character.digit(s.charAt(i + 2), 16);
+			if (hi < 0 || lo < 0) {
+				return null;
+			}
+			bytes.write(hi * 16 + lo);
+			i += 2;
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
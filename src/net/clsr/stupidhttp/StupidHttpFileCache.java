@@ -0,0 +1,522 @@
+package net.clsr.stupidhttp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StupidHttpFileCache keeps the content of frequently served files in memory.
+ * 
+ * Files are cached with their response headers already built, so a hit is served without touching the disk.
+ * The cache is bounded by the total size of the cached content and evicts the least recently used files first;
+ * files larger than a limit are not read into the heap and are sent from the disk instead.
+ * Optionally, such large files are memory-mapped while they stay among the recently used ones (see {@link #setMaxMappedSize(long)}),
+ * so they are sent from the page cache without being opened for every request or copied into the heap.
+ * A cached file is checked for changes (its size and modification time) at most once per check interval, one second by default,
+ * so a changed file is served at most that long after it was rewritten.
+ * The same goes for a missing gzip sidecar, which is served at most a check interval after it was created.
+ * 
+ * A cache can be shared by several handlers, see {@link StupidHttpFileHandler#setCache(StupidHttpFileCache)}.
+ * Entries are kept apart by how the file is served, not just by its path:
+ * a gzip sidecar served as the encoded variant of "app.js" is a different entry from the same file requested directly as "app.js.gz".
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public class StupidHttpFileCache {
+	private static final int MAX_HASHES = 256;
+	private final long maxSize;
+	private final long maxFileSize;
+	private volatile long checkInterval = 1000;
+	// guards the map and size; only held briefly, never while a file is read
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true); // in access order
+	private long size = 0;
+	private volatile long maxMappedSize = 0;
+	private volatile boolean gzipVariants = false;
+	private long mappedSize = 0;
+	// content hashes of files that aren't held in the heap, so they aren't read again on every request; guarded by the lock
+	private final LinkedHashMap<File, String[]> hashes = new LinkedHashMap<File, String[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, String[]> eldest) {
+			return this.size() > MAX_HASHES;
+		}
+	};
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a new cache that doesn't cache files larger than an eighth of its size.
+	 * 
+	 * @param maxSize The maximum total size of the cached files in bytes
+	 */
+	public StupidHttpFileCache(long maxSize) {
+		this(maxSize, maxSize / 8);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxSize The maximum total size of the cached files in bytes
+	 * @param maxFileSize The size of the largest file that is cached
+	 */
+	public StupidHttpFileCache(long maxSize, long maxFileSize) {
+		this.maxSize = maxSize;
+		this.maxFileSize = Math.min(maxFileSize, Math.min(maxSize, Integer.MAX_VALUE - 8));
+	}
+
+	/**
+	 * Sets how often cached files are checked for changes.
+	 * 
+	 * @param checkInterval The interval in milliseconds; 0 checks on every request
+	 */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Sets the total size of the large files that are memory-mapped; the default is 0, so none are.
+	 * Mapped files take address space rather than heap, and their pages are shared with the OS page cache.
+	 * A mapping is released when the garbage collector reclaims it after the file is evicted or has changed.
+	 * 
+	 * Mapped files must be replaced (written to a new file and renamed over the old one) rather than truncated in place,
+	 * since reading a mapping past the end of a truncated file fails.
+	 * 
+	 * @param maxMappedSize The maximum total size of the mapped files in bytes
+	 */
+	public void setMaxMappedSize(long maxMappedSize) {
+		this.maxMappedSize = maxMappedSize;
+	}
+
+	/**
+	 * @return The number of requests served from the cache
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return The number of requests for files that weren't cached or had changed
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return The number of files evicted to make room for others
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * @return The total size of the cached files in bytes, not counting mapped ones
+	 */
+	public long getSize() {
+		this.lock.lock();
+		try {
+			return this.size;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The total size of the memory-mapped files in bytes
+	 */
+	public long getMappedSize() {
+		this.lock.lock();
+		try {
+			return this.mappedSize;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of cached files
+	 */
+	public int getCount() {
+		this.lock.lock();
+		try {
+			return this.entries.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a file from the cache, so the next request reads it again.
+	 * 
+	 * @param file The file
+	 */
+	public void invalidate(File file) {
+		file = file.getAbsoluteFile();
+		this.lock.lock();
+		try {
+			this.hashes.remove(file);
+			Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Key, Entry> e = it.next();
+				if (e.getKey().file.equals(file)) {
+					it.remove();
+					this.add(e.getValue(), -1);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all files from the cache.
+	 */
+	public void clear() {
+		this.lock.lock();
+		try {
+			this.entries.clear();
+			this.hashes.clear();
+			this.size = 0;
+			this.mappedSize = 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets whether gzip variants of cached text files (see {@link StupidHttpCompression#isCompressible(String)}) are generated
+	 * the first time a client accepts them and cached along with the files, so they are compressed only once.
+	 * 
+	 * @param gzipVariants Whether to generate gzip variants
+	 */
+	public void setGzipVariants(boolean gzipVariants) {
+		this.gzipVariants = gzipVariants;
+	}
+
+	/**
+	 * Construct a response serving a file from the cache, like {@link StupidHttpResponse#fileResponse(StupidHttpRequest, File)}.
+	 * 
+	 * @param req The request
+	 * @param file The file to serve
+	 * @param contentHashETags Whether entity tags are hashed from the content of the file
+	 * @param precompressed Whether a gzip sidecar ("file.gz") is served to clients that accept it
+	 * @return The response
+	 */
+	StupidHttpResponse fileResponse(StupidHttpRequest req, File file, boolean contentHashETags, boolean precompressed) {
+		file = file.getAbsoluteFile();
+		boolean gzip = (precompressed || this.gzipVariants) && StupidHttpCompression.accepts(req, "gzip");
+		long now = System.currentTimeMillis();
+		boolean noSidecar = false;
+		if (gzip && precompressed) {
+			// a missing sidecar is remembered by the file's entry, so it isn't looked for on the disk on every request either
+			Entry known = this.cached(new Key(file, file.getName(), null, true));
+			if (known == null || now - known.sidecarMissing >= this.checkInterval) {
+				Entry sidecar = this.lookup(StupidHttpFiles.sidecar(file), file.getName(), "gzip", true, contentHashETags);
+				if (sidecar != null) {
+					return StupidHttpFiles.respond(req, sidecar.resource);
+				}
+				noSidecar = true;
+			}
+		}
+		// the identity variant varies by Accept-Encoding whenever an encoded one may be served instead
+		Entry entry = this.lookup(file, file.getName(), null, precompressed, contentHashETags);
+		if (entry == null) {
+			return StupidHttpResponse.notFoundResponse(req.getPath());
+		}
+		if (noSidecar) {
+			entry.sidecarMissing = now;
+		}
+		if (gzip && this.gzipVariants && StupidHttpCompression.isCompressible(entry.resource.type)) {
+			return StupidHttpFiles.respond(req, this.gzipVariant(entry));
+		}
+		return StupidHttpFiles.respond(req, entry.resource);
+	}
+
+	/**
+	 * @return The cached entry, without checking the file for changes; null if there is none
+	 */
+	private Entry cached(Key key) {
+		this.lock.lock();
+		try {
+			return this.entries.get(key);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Find a file in the cache, or read it and cache it if it is missing or has changed.
+	 * 
+	 * @param file The absolute path of the file
+	 * @param name The name to guess the content type from
+	 * @param encoding The content coding of the file; null if it isn't encoded
+	 * @param negotiated Whether there are variants with other content codings
+	 * @param contentHashETags Whether entity tags are hashed from the content of the file
+	 * @return The entry, which is not cached if the file is too large; null if the file doesn't exist
+	 */
+	private Entry lookup(File file, String name, String encoding, boolean negotiated, boolean contentHashETags) {
+		if (encoding == null && this.gzipVariants && StupidHttpCompression.isCompressible(URLConnection.guessContentTypeFromName(name))) {
+			negotiated = true;
+		}
+		Key key = new Key(file, name, encoding, negotiated);
+		Entry entry = this.cached(key);
+
+		long now = System.currentTimeMillis();
+		if (entry != null && now - entry.checked < this.checkInterval) {
+			this.hits.incrementAndGet();
+			return entry;
+		}
+
+		BasicFileAttributes attrs = StupidHttpFiles.stat(file);
+		if (attrs == null) {
+			this.remove(key);
+			return null;
+		}
+		long length = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		if (entry != null && entry.resource.length == length && entry.resource.lastModified == lastModified) {
+			entry.checked = now;
+			this.hits.incrementAndGet();
+			return entry;
+		}
+
+		this.misses.incrementAndGet();
+		if (length > this.maxFileSize && length <= Math.min(this.maxMappedSize, Integer.MAX_VALUE)) {
+			entry = this.map(key, length, lastModified, contentHashETags, now);
+			if (entry != null) {
+				return entry;
+			}
+		}
+		if (length > this.maxFileSize) {
+			this.remove(key);
+			String etag = contentHashETags ? this.contentETag(file, length, lastModified) : null;
+			return new Entry(key, new StupidHttpFiles.Resource(name, length, lastModified, etag, new StupidHttpBody.FileRegion(file, 0, length), encoding, negotiated), false, now);
+		}
+
+		byte[] data;
+		try {
+			data = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			this.remove(key);
+			return null;
+		}
+		if (data.length != length) {
+			// changed while it was read; serve what was read, but don't cache it
+			return new Entry(key, new StupidHttpFiles.Resource(name, data.length, lastModified, null, new StupidHttpBody.Bytes(data), encoding, negotiated), false, now);
+		}
+		String etag = contentHashETags ? StupidHttpFiles.contentETag(data) : null;
+		entry = new Entry(key, new StupidHttpFiles.Resource(name, length, lastModified, etag, new StupidHttpBody.Bytes(data), encoding, negotiated), false, now);
+		this.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * @return The entry of the mapped file; null if it can't be mapped
+	 */
+	private Entry map(Key key, long length, long lastModified, boolean contentHashETags, long now) {
+		File file = key.file;
+		MappedByteBuffer data;
+		String etag = null;
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				if (channel.size() != length) {
+					return null; // changed, so it is served like an uncached file
+				}
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length); // stays valid after the channel is closed
+			} finally {
+				channel.close();
+			}
+			if (contentHashETags) {
+				etag = this.contentETag(file, length, lastModified);
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		Entry entry = new Entry(key, new StupidHttpFiles.Resource(key.name, length, lastModified, etag, new StupidHttpBody.Buffer(data), key.encoding, key.negotiated), true, now);
+		this.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Hash the content of a file that isn't read into the heap, reusing the hash while its size and modification time stay the same.
+	 * 
+	 * @return The entity tag; null if the file can't be read, so the metadata entity tag is used
+	 */
+	private String contentETag(File file, long length, long lastModified) {
+		String key = StupidHttpFiles.metadataETag(length, lastModified);
+		String[] hashed;
+		this.lock.lock();
+		try {
+			hashed = this.hashes.get(file);
+		} finally {
+			this.lock.unlock();
+		}
+		if (hashed != null && hashed[0].equals(key)) {
+			return hashed[1];
+		}
+		String etag;
+		try {
+			etag = StupidHttpFiles.contentETag(file);
+		} catch (IOException e) {
+			return null;
+		}
+		this.lock.lock();
+		try {
+			this.hashes.put(file, new String[] { key, etag });
+		} finally {
+			this.lock.unlock();
+		}
+		return etag;
+	}
+
+	/**
+	 * Get the gzip variant of a cached file, compressing and caching it the first time.
+	 * 
+	 * @return The variant; the unencoded file if it doesn't compress
+	 */
+	private StupidHttpFiles.Resource gzipVariant(Entry entry) {
+		StupidHttpFiles.Resource variant = entry.gzipped;
+		if (variant != null) {
+			return variant;
+		}
+		StupidHttpFiles.Resource res = entry.resource;
+		if (!(res.content instanceof StupidHttpBody.Bytes)) {
+			return res; // files outside the heap would have to be read
+		}
+		StupidHttpBody.Bytes bytes = (StupidHttpBody.Bytes) res.content;
+		byte[] data = StupidHttpCompression.gzip(bytes.data, bytes.offset, bytes.length);
+		variant = data.length < bytes.length ? new StupidHttpFiles.Resource(entry.key.name, data.length, res.lastModified, res.etag, new StupidHttpBody.Bytes(data), "gzip", true) : res;
+		this.lock.lock();
+		try {
+			if (this.entries.get(entry.key) == entry && entry.gzipped == null) {
+				this.add(entry, -1);
+				entry.gzipped = variant;
+				this.add(entry, 1);
+				this.evict(entry);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return variant;
+	}
+
+	private void put(Key key, Entry entry) {
+		this.lock.lock();
+		try {
+			this.removeEntry(key);
+			this.entries.put(key, entry);
+			this.add(entry, 1);
+			this.evict(entry);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries until the cache fits its limits again; with the lock held.
+	 * 
+	 * @param keep The entry that was just added, which is kept
+	 */
+	private void evict(Entry keep) {
+		Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+		while ((this.size > this.maxSize || this.mappedSize > this.maxMappedSize) && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			boolean over = eldest.mapped ? this.mappedSize > this.maxMappedSize : this.size > this.maxSize;
+			if (eldest == keep || !over) {
+				continue;
+			}
+			it.remove();
+			this.add(eldest, -1);
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(Key key) {
+		this.lock.lock();
+		try {
+			this.removeEntry(key);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void removeEntry(Key key) {
+		Entry old = this.entries.remove(key);
+		if (old != null) {
+			this.add(old, -1);
+		}
+	}
+
+	private void add(Entry entry, int sign) {
+		if (entry.mapped) {
+			this.mappedSize += sign * entry.resource.length;
+			return;
+		}
+		this.size += sign * entry.resource.length;
+		StupidHttpFiles.Resource variant = entry.gzipped;
+		if (variant != null && variant != entry.resource) {
+			this.size += sign * variant.length;
+		}
+	}
+
+	/**
+	 * A file and the way it is served: the name its content type is guessed from, its content coding and whether it is negotiated.
+	 */
+	private static final class Key {
+		final File file;
+		final String name;
+		final String encoding;
+		final boolean negotiated;
+
+		Key(File file, String name, String encoding, boolean negotiated) {
+			this.file = file;
+			this.name = name;
+			this.encoding = encoding;
+			this.negotiated = negotiated;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return this.file.equals(k.file) && this.name.equals(k.name) && (this.encoding == null ? k.encoding == null : this.encoding.equals(k.encoding)) && this.negotiated == k.negotiated;
+		}
+
+		@Override
+		public int hashCode() {
+			return (this.file.hashCode() * 31 + this.name.hashCode()) * 31 + (this.encoding == null ? 0 : this.encoding.hashCode()) * 2 + (this.negotiated ? 1 : 0);
+		}
+	}
+
+	private static class Entry {
+		final Key key;
+		final StupidHttpFiles.Resource resource;
+		final boolean mapped; // the content is a mapping of the file rather than a copy in the heap
+		volatile long checked; // when the file was last found unchanged
+		volatile long sidecarMissing = 0; // when the file's gzip sidecar was last found missing; reset along with the entry when the file changes
+		volatile StupidHttpFiles.Resource gzipped = null; // changed only with the lock held, since it counts towards the size
+
+		Entry(Key key, StupidHttpFiles.Resource resource, boolean mapped, long checked) {
+			this.key = key;
+			this.resource = resource;
+			this.mapped = mapped;
+			this.checked = checked;
+		}
+	}
+}
@@ -1,17 +1,26 @@
 package net.clsr.stupidhttp;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 
 /**
  * StupidHttpFileHandler implements a {@link StupidHttpHandler} that serves a file.
+ * Range and conditional requests are supported for files on the filesystem (see {@link StupidHttpResponse#fileResponse(StupidHttpRequest, File)}).
+ * Only GET and HEAD requests are served; other methods are answered with {@link StupidHttpStatus#MethodNotAllowed}.
  * 
  * @author Marko Ceferin <marko@cefer.in>
  * @version 1.0
  */
 public class StupidHttpFileHandler implements StupidHttpHandler {
 	private URL url;
+	private File file = null; // null unless the URL is a file on the filesystem
+	private boolean contentHashETags = false;
+	private boolean precompressed = false;
+	private StupidHttpFileCache cache = null;
+	private volatile String[] hashedETag = null; // the metadata entity tag the hash was computed for, and the hash
 
 	/**
 	 * Creates a new handler.
@@ -20,7 +29,8 @@ public class StupidHttpFileHandler implements StupidHttpHandler {
 	 * @throws MalformedURLException The filename is malformed
 	 */
 	public StupidHttpFileHandler(String filename) throws MalformedURLException {
-		this.url = new File(filename).toURI().toURL();
+		this.file = new File(filename);
+		this.url = this.file.toURI().toURL();
 	}
 
 	/**
@@ -30,6 +40,7 @@ public class StupidHttpFileHandler implements StupidHttpHandler {
 	 * @throws MalformedURLException The filename is malformed
 	 */
 	public StupidHttpFileHandler(File file) throws MalformedURLException {
+		this.file = file;
 		this.url = file.toURI().toURL();
 	}
 
@@ -40,10 +51,70 @@ public class StupidHttpFileHandler implements StupidHttpHandler {
 	 */
 	public StupidHttpFileHandler(URL url) {
 		this.url = url;
+		if ("file".equals(url.getProtocol())) {
+			try {
+				this.file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+			} catch (IllegalArgumentException e) {}
+		}
+	}
+
+	/**
+	 * Sets whether entity tags are hashed from the file's content rather than derived from its size and modification time.
+	 * Content hashes stay valid when the same file is deployed again, at the cost of reading the file whenever it changes.
+	 * 
+	 * @param contentHashETags Whether to use content hashes
+	 */
+	public void setContentHashETags(boolean contentHashETags) {
+		this.contentHashETags = contentHashETags;
+	}
+
+	/**
+	 * Sets whether a gzip sidecar, "file.gz" next to the file, is served instead of the file to clients that accept gzip.
+	 * The sidecar is sent with a Content-Encoding header, and responses get a Vary header, so caches keep both variants apart.
+	 * 
+	 * @param precompressed Whether to look for gzip sidecars
+	 */
+	public void setPrecompressed(boolean precompressed) {
+		this.precompressed = precompressed;
+	}
+
+	/**
+	 * Sets a cache to serve the file from memory.
+	 * Only files on the filesystem are cached.
+	 * 
+	 * @param cache The cache; null to read the file on every request
+	 */
+	public void setCache(StupidHttpFileCache cache) {
+		this.cache = cache;
 	}
 
 	@Override
 	public StupidHttpResponse handle(StupidHttpRequest req) {
-		return StupidHttpResponse.fileResponse(this.url);
+		if (!StupidHttpFiles.isReadMethod(req)) {
+			return StupidHttpFiles.methodNotAllowedResponse();
+		}
+		if (this.file == null) {
+			return StupidHttpResponse.fileResponse(req, this.url);
+		}
+		if (this.cache != null) {
+			return this.cache.fileResponse(req, this.file, this.contentHashETags, this.precompressed);
+		}
+		return StupidHttpFiles.fileResponse(req, this.file, this.contentHashETags ? this.contentETag() : null, this.precompressed);
+	}
+
+	private String contentETag() {
+		String key = StupidHttpFiles.metadataETag(this.file.length(), this.file.lastModified());
+		String[] hashed = this.hashedETag;
+		if (hashed != null && hashed[0].equals(key)) {
+			return hashed[1];
+		}
+		try {
+			String etag = StupidHttpFiles.contentETag(this.file);
+			this.hashedETag = new String[] { key, etag };
+			return etag;
+		} catch (IOException e) {
+			return null; // falls back to the metadata entity tag, the file may be gone
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,410 @@
+package net.clsr.stupidhttp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * StupidHttpFiles builds responses serving files on the filesystem for {@link StupidHttpResponse#fileResponse(StupidHttpRequest, File)}.
+ * 
+ * Every response carries a Last-Modified date and an entity tag, derived from the file's size and modification time unless one is given.
+ * If-None-Match and If-Modified-Since are checked against them and answered with {@link StupidHttpStatus#NotModified} using only the file's metadata.
+ * 
+ * Range requests are answered with the requested byte ranges of the file (a single range, or several as multipart/byteranges),
+ * sent as regions of the file without reading the rest of it.
+ * 
+ * Optionally, a gzip sidecar ("file.gz" next to "file") is served instead of the file to clients that accept gzip,
+ * with Content-Encoding and Vary headers and an entity tag of its own.
+ * The sidecar is expected to be kept up to date with the file, as build tools producing both do.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+final class StupidHttpFiles {
+	private static final int MAX_RANGES = 16; // more ranges are answered with the whole file, so tiny ranges can't multiply the work
+
+	private StupidHttpFiles() {}
+
+	/**
+	 * Construct a response serving a file, honoring the conditional and Range headers of the request.
+	 * 
+	 * @param req The request
+	 * @param file The file to serve
+	 * @param etag The entity tag of the file's content, including quotes; null to derive one from its size and modification time
+	 * @param precompressed Whether a gzip sidecar is served to clients that accept it
+	 * @return The response
+	 */
+	static StupidHttpResponse fileResponse(StupidHttpRequest req, File file, String etag, boolean precompressed) {
+		BasicFileAttributes attrs = stat(file);
+		if (attrs == null) {
+			return StupidHttpResponse.notFoundResponse(req.getPath());
+		}
+		if (precompressed && StupidHttpCompression.accepts(req, "gzip")) {
+			File gz = sidecar(file);
+			BasicFileAttributes gzAttrs = stat(gz);
+			if (gzAttrs != null) {
+				long length = gzAttrs.size();
+				return respond(req, new Resource(file.getName(), length, gzAttrs.lastModifiedTime().toMillis(), etag, new StupidHttpBody.FileRegion(gz, 0, length), "gzip", true));
+			}
+		}
+		long length = attrs.size();
+		return respond(req, new Resource(file.getName(), length, attrs.lastModifiedTime().toMillis(), etag, new StupidHttpBody.FileRegion(file, 0, length), null, precompressed));
+	}
+
+	/**
+	 * @return Whether the request only reads the resource; conditional and Range headers apply only to these methods
+	 */
+	static boolean isReadMethod(StupidHttpRequest req) {
+		return req.isGet() || req.isHead();
+	}
+
+	/**
+	 * @return A {@link StupidHttpStatus#MethodNotAllowed} response for requests that would change a file, which file handlers don't support
+	 */
+	static StupidHttpResponse methodNotAllowedResponse() {
+		int code = StupidHttpStatus.MethodNotAllowed;
+		StupidHttpResponse resp = StupidHttpResponse.simpleResponse(code, null, String.format("%d %s", code, StupidHttpStatus.statusText(code)));
+		resp.setHeader(new StupidHttpHeader("allow", "GET, HEAD"));
+		return resp;
+	}
+
+	/**
+	 * @param name A file name or path
+	 * @return The content type guessed from the name; application/octet-stream if it can't be guessed
+	 */
+	static String contentType(String name) {
+		String type = URLConnection.guessContentTypeFromName(name);
+		return type == null ? "application/octet-stream" : type;
+	}
+
+	/**
+	 * @return The gzip sidecar of a file
+	 */
+	static File sidecar(File file) {
+		return new File(file.getPath() + ".gz");
+	}
+
+	/**
+	 * @return The attributes of a regular file; null if it doesn't exist or isn't a regular file
+	 */
+	static BasicFileAttributes stat(File file) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			return attrs.isRegularFile() ? attrs : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Construct a response serving a resource, honoring the conditional and Range headers of the request.
+	 * 
+	 * @param req The request
+	 * @param res The resource
+	 * @return The response
+	 */
+	static StupidHttpResponse respond(StupidHttpRequest req, Resource res) {
+		if (isNotModified(req, res.etag, res.lastModified)) {
+			return notModifiedResponse(res);
+		}
+
+		StupidHttpResponse resp = new StupidHttpResponse();
+		for (StupidHttpHeader h : res.headers) {
+			resp.setHeader(h);
+		}
+
+		String range = req.getHeader("range");
+		if (range == null || !isReadMethod(req) || !ifRangeMatches(req.getHeader("if-range"), res.etag, res.lastModified)) {
+			resp.setBody(res.content);
+			return resp;
+		}
+		List<long[]> ranges = parseRanges(range, res.length);
+		if (ranges == null) {
+			resp.setBody(res.content); // not understood, so ignored
+			return resp;
+		}
+		if (ranges.isEmpty()) {
+			resp = StupidHttpResponse.simpleResponse(StupidHttpStatus.RequestedRangeNotSatisfiable, null, String.format("%d %s", StupidHttpStatus.RequestedRangeNotSatisfiable, StupidHttpStatus.statusText(StupidHttpStatus.RequestedRangeNotSatisfiable)));
+			resp.setHeader(new StupidHttpHeader("content-range", "bytes */" + res.length));
+			return resp;
+		}
+
+		resp.setCode(StupidHttpStatus.PartialContent);
+		if (ranges.size() == 1) {
+			long[] r = ranges.get(0);
+			resp.setHeader(new StupidHttpHeader("content-range", contentRange(r, res.length)));
+			resp.setBody(res.content.slice(r[0], r[1] - r[0] + 1));
+			return resp;
+		}
+
+		String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+		StupidHttpBody[] parts = new StupidHttpBody[2 * ranges.size() + 1];
+		for (int i = 0; i < ranges.size(); i++) {
+			long[] r = ranges.get(i);
+			String head = String.format("%s--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n", i == 0 ? "" : "\r\n", boundary, res.type, contentRange(r, res.length));
+			parts[2 * i] = new StupidHttpBody.Bytes(head.getBytes(StandardCharsets.UTF_8));
+			parts[2 * i + 1] = res.content.slice(r[0], r[1] - r[0] + 1);
+		}
+		parts[parts.length - 1] = new StupidHttpBody.Bytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+		resp.setHeader(new StupidHttpHeader("content-type", "multipart/byteranges; boundary=" + boundary));
+		resp.setBody(new StupidHttpBody.Composite(parts));
+		return resp;
+	}
+
+	/**
+	 * Parse a Range header (RFC 7233 section 2.1).
+	 * 
+	 * @param header The header value, such as "bytes=0-499, -500"
+	 * @param length The length of the file
+	 * @return The satisfiable ranges as {first, last} byte positions, empty if none is satisfiable; null if the header is invalid or has too many ranges
+	 */
+	static List<long[]> parseRanges(String header, long length) {
+		header = header.trim();
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<long[]>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long first;
+			long last;
+			try {
+				if (dash == 0) { // suffix: the last n bytes
+					long n = Long.parseLong(spec.substring(1));
+					if (n <= 0) {
+						continue;
+					}
+					first = Math.max(0, length - n);
+					last = length - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) { // open-ended: from first to the end
+						last = length - 1;
+					} else {
+						last = Long.parseLong(spec.substring(dash + 1));
+						if (last < first) {
+							return null; // "500-400" is invalid, not unsatisfiable
+						}
+						last = Math.min(last, length - 1);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (first < 0) {
+				return null;
+			}
+			if (first < length && first <= last) {
+				ranges.add(new long[] { first, last });
+			}
+		}
+		return ranges;
+	}
+
+	private static String contentRange(long[] range, long length) {
+		return "bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+
+	/**
+	 * @param ifRange The If-Range header; null if missing
+	 * @param etag The entity tag of the file
+	 * @param lastModified The modification time of the file in milliseconds
+	 * @return Whether the range may be served: there's no If-Range, or it matches the current file
+	 */
+	private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(etag) && !etag.startsWith("W/"); // strong comparison
+		}
+		long date = StupidHttpDate.parse(ifRange);
+		return date >= 0 && date == lastModified / 1000;
+	}
+
+	/**
+	 * Evaluate If-None-Match and If-Modified-Since (RFC 7232 section 6).
+	 * If-Modified-Since is ignored when If-None-Match is present, since entity tags are more precise.
+	 * 
+	 * @param req The request
+	 * @param etag The entity tag of the file
+	 * @param lastModified The modification time of the file in milliseconds
+	 * @return Whether the client's copy is current and {@link StupidHttpStatus#NotModified} can be sent
+	 */
+	static boolean isNotModified(StupidHttpRequest req, String etag, long lastModified) {
+		if (!isReadMethod(req)) {
+			return false;
+		}
+		String ifNoneMatch = req.getHeader("if-none-match");
+		if (ifNoneMatch != null) {
+			return matchesETag(ifNoneMatch, etag);
+		}
+		String ifModifiedSince = req.getHeader("if-modified-since");
+		if (ifModifiedSince != null) {
+			long date = StupidHttpDate.parse(ifModifiedSince);
+			return date >= 0 && lastModified / 1000 <= date;
+		}
+		return false;
+	}
+
+	/**
+	 * @param header A list of entity tags, such as If-None-Match, or "*"
+	 * @param etag The entity tag to look for
+	 * @return Whether the list contains the entity tag, compared weakly (ignoring "W/")
+	 */
+	static boolean matchesETag(String header, String etag) {
+		if (header.trim().equals("*")) {
+			return true;
+		}
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		int i = 0;
+		while (i < header.length()) {
+			int start = header.indexOf('"', i);
+			if (start < 0) {
+				break;
+			}
+			int end = header.indexOf('"', start + 1);
+			if (end < 0) {
+				break;
+			}
+			if (header.regionMatches(start, opaque, 0, opaque.length()) && end - start + 1 == opaque.length()) {
+				return true;
+			}
+			i = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Construct a {@link StupidHttpStatus#NotModified} response carrying the validators of a resource.
+	 * 
+	 * @param res The resource
+	 * @return The response
+	 */
+	static StupidHttpResponse notModifiedResponse(Resource res) {
+		StupidHttpResponse resp = new StupidHttpResponse();
+		resp.setCode(StupidHttpStatus.NotModified);
+		resp.removeHeaders("content-type");
+		resp.setHeader(res.headers[2]);
+		resp.setHeader(res.headers[3]);
+		if (res.negotiated) {
+			resp.setHeader(StupidHttpCompression.VARY);
+		}
+		return resp;
+	}
+
+	/**
+	 * @return An entity tag derived from the size and modification time of a file, which changes whenever the file is rewritten
+	 */
+	static String metadataETag(long length, long lastModified) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * Hash the content of a file into an entity tag.
+	 * Unlike {@link #metadataETag(long, long)}, it stays the same when a file is copied or deployed again with the same content,
+	 * but the whole file has to be read.
+	 * 
+	 * @param file The file
+	 * @return The entity tag
+	 * @throws IOException Exception while reading the file
+	 */
+	static String contentETag(File file) throws IOException {
+		MessageDigest digest = sha256();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(1024 * 64);
+			while (channel.read(buf) >= 0) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest()) + "\"";
+	}
+
+	/**
+	 * Hash content held in memory into an entity tag, like {@link #contentETag(File)}.
+	 * 
+	 * @param data The content
+	 * @return The entity tag
+	 */
+	static String contentETag(byte[] data) {
+		return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(sha256().digest(data)) + "\"";
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // required on every Java platform
+		}
+	}
+
+	/**
+	 * The content of a file and the headers describing it, which are created once and shared by every response serving it.
+	 */
+	static final class Resource {
+		final String type;
+		final long length;
+		final long lastModified;
+		final String etag;
+		final StupidHttpBody content;
+		final boolean negotiated;
+		final StupidHttpHeader[] headers; // Content-Type, Accept-Ranges, Last-Modified, ETag, then Content-Encoding and Vary if any
+
+		/**
+		 * @param name The file name, to guess the content type from
+		 * @param length The length of the content
+		 * @param lastModified The modification time in milliseconds
+		 * @param etag The entity tag; null to derive one from the length and modification time
+		 * @param content The content; must support {@link StupidHttpBody#slice(long, long)}
+		 * @param encoding The content coding of the content, which is added to the entity tag; null if it isn't encoded
+		 * @param negotiated Whether the content is chosen by Accept-Encoding, so responses vary by it
+		 */
+		Resource(String name, long length, long lastModified, String etag, StupidHttpBody content, String encoding, boolean negotiated) {
+			this.type = contentType(name);
+			this.length = length;
+			this.lastModified = lastModified;
+			etag = etag == null ? metadataETag(length, lastModified) : etag;
+			this.etag = encoding == null ? etag : StupidHttpCompression.variantETag(etag, encoding);
+			this.content = content;
+			this.negotiated = negotiated;
+			List<StupidHttpHeader> headers = new ArrayList<StupidHttpHeader>(6);
+			headers.add(new StupidHttpHeader("content-type", this.type));
+			headers.add(new StupidHttpHeader("accept-ranges", "bytes"));
+			headers.add(new StupidHttpHeader("last-modified", StupidHttpDate.format(lastModified)));
+			headers.add(new StupidHttpHeader("etag", this.etag));
+			if (encoding != null) {
+				headers.add(new StupidHttpHeader("content-encoding", encoding));
+			}
+			if (negotiated) {
+				headers.add(StupidHttpCompression.VARY);
+			}
+			this.headers = headers.toArray(new StupidHttpHeader[headers.size()]);
+		}
+	}
+}
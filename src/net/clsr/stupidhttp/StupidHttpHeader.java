@@ -1,5 +1,8 @@
 package net.clsr.stupidhttp;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
 /**
  * StupidHttpHeader represents a HTTP header entry.
  * 
@@ -8,8 +11,26 @@ package net.clsr.stupidhttp;
  */
 public class StupidHttpHeader {
 	private static final String[] OverrideNormalizedKeys = new String[] { "Content-MD5", "DNT", "ETag", "TE", "WWW-Authenticate", "X-XSS-Protection" };
+	private static final String[] WellKnownNames = new String[] { "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control", "connection", "content-encoding", "content-length", "content-type", "cookie", "date", "dnt", "expect", "forwarded", "host", "if-match", "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "keep-alive", "origin", "pragma", "range", "referer", "te", "transfer-encoding", "upgrade", "upgrade-insecure-requests", "user-agent", "via", "x-forwarded-for", "x-forwarded-host", "x-forwarded-proto", "x-real-ip", "x-requested-with",
+			// response headers
+			"accept-ranges", "age", "allow", "content-disposition", "content-language", "content-location", "content-range", "etag", "expires", "last-modified", "location", "retry-after", "server", "set-cookie", "strict-transport-security", "vary", "www-authenticate" };
+	private static final String[] WellKnownTable = new String[128];
+	private static final String[] WellKnownNormalized = new String[WellKnownTable.length]; // the normalized name of the name at the same index
+	static {
+		for (String name : WellKnownNames) {
+			int i = name.hashCode() & (WellKnownTable.length - 1);
+			while (WellKnownTable[i] != null) {
+				i = (i + 1) & (WellKnownTable.length - 1);
+			}
+			WellKnownTable[i] = name;
+			WellKnownNormalized[i] = normalize(name);
+		}
+	}
 	private final String key;
 	private final String value;
+	private String normalizedKey = null;
+	// "Key: value\r\n", cached for headers shared by many responses; volatile so its bytes are visible to every thread that sees it
+	private volatile byte[] encoded = null;
 
 	/**
 	 * Construct a header entry from key and value strings.
@@ -33,13 +54,30 @@ public class StupidHttpHeader {
 	 * @return Normalized header key
 	 */
 	public String getNormalizedKey() {
+		if (this.normalizedKey == null) {
+			this.normalizedKey = this.normalizeKey();
+		}
+		return this.normalizedKey;
+	}
+
+	private String normalizeKey() {
+		int h = lowerCaseHash(this.key);
+		for (int i = h & (WellKnownTable.length - 1); WellKnownTable[i] != null; i = (i + 1) & (WellKnownTable.length - 1)) {
+			if (WellKnownTable[i].hashCode() == h && WellKnownTable[i].equalsIgnoreCase(this.key)) {
+				return WellKnownNormalized[i]; // shared, without splitting the name
+			}
+		}
+		return normalize(this.key);
+	}
+
+	private static String normalize(String name) {
 		for (String k : OverrideNormalizedKeys) {
-			if (this.key.equalsIgnoreCase(k)) {
+			if (name.equalsIgnoreCase(k)) {
 				return k;
 			}
 		}
 
-		String[] fields = this.key.split("-");
+		String[] fields = name.split("-");
 		StringBuilder key = new StringBuilder();
 		for (int i = 0; i < fields.length; i++) {
 			if (i != 0) {
@@ -62,6 +100,18 @@ public class StupidHttpHeader {
 		return this.value;
 	}
 
+	/**
+	 * @return The normalized "Header: value" entry and CRLF encoded for a response head
+	 */
+	byte[] encoded() {
+		byte[] encoded = this.encoded;
+		if (encoded == null) {
+			encoded = (this.getNormalizedKey() + ": " + this.getValue() + "\r\n").getBytes(StandardCharsets.UTF_8);
+			this.encoded = encoded;
+		}
+		return encoded;
+	}
+
 	/**
 	 * Construct a normalized "Header: value" entry.
 	 * 
@@ -71,4 +121,54 @@ public class StupidHttpHeader {
 	public String toString() {
 		return this.getNormalizedKey() + ": " + this.getValue();
 	}
+
+	/**
+	 * Lower-case a header name from raw request bytes.
+	 * Well-known names are returned as shared strings, so no new string is created for them.
+	 * 
+	 * @param b The bytes
+	 * @param start The start of the name
+	 * @param end The end of the name
+	 * @return The lower-case name
+	 */
+	static String lowerCaseName(byte[] b, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			int c = b[i];
+			if (c < 0) {
+				return new String(b, start, end - start, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+			}
+			h = 31 * h + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+		}
+		for (int i = h & (WellKnownTable.length - 1); WellKnownTable[i] != null; i = (i + 1) & (WellKnownTable.length - 1)) {
+			String name = WellKnownTable[i];
+			if (name.hashCode() != h || name.length() != end - start) {
+				continue;
+			}
+			boolean match = true;
+			for (int j = 0; j < name.length() && match; j++) {
+				int c = b[start + j];
+				match = (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c) == name.charAt(j);
+			}
+			if (match) {
+				return name;
+			}
+		}
+		return new String(b, start, end - start, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Compute the hash code of a lower-cased header name without creating the lower-case string.
+	 * Equals {@code name.toLowerCase(Locale.ROOT).hashCode()} for all header names.
+	 * 
+	 * @param name The name
+	 * @return The hash code
+	 */
+	static int lowerCaseHash(String name) {
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) {
+			h = 31 * h + Character.toLowerCase(name.charAt(i));
+		}
+		return h;
+	}
 }
\ No newline at end of file
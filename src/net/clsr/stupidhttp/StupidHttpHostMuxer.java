@@ -0,0 +1,132 @@
+package net.clsr.stupidhttp;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StupidHttpHostMuxer is a handler that dispatches other handlers, usually a {@link StupidHttpMuxer} for each site, based on the request's Host header.
+ * 
+ * Host names are compared without case, port and trailing dot, so "Example.com:8080" is handled by the handler for "example.com".
+ * A name starting with "*." matches all subdomains of the rest of the name, at any depth, but not the name itself:
+ * "*.example.com" matches "www.example.com" and "a.b.example.com", but not "example.com".
+ * An exact name wins over wildcards, and a longer wildcard over a shorter one.
+ * Requests without a Host header, or for a host that matches no name, are handled by the default handler.
+ * 
+ * Exact names are found with a single hash lookup; wildcards take one more for each dot in the host name.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public class StupidHttpHostMuxer implements StupidHttpHandler {
+	private final Map<String, StupidHttpHandler> hosts = new ConcurrentHashMap<String, StupidHttpHandler>(); // lock-free reads, so concurrent requests don't contend
+	private final Map<String, StupidHttpHandler> wildcards = new ConcurrentHashMap<String, StupidHttpHandler>(); // by the suffix after "*", such as ".example.com"
+	private volatile StupidHttpHandler defaultHandler;
+
+	/**
+	 * Create a new host muxer whose default handler is {@link StupidHttpStatus#handle404}.
+	 */
+	public StupidHttpHostMuxer() {
+		this(StupidHttpStatus.handle404);
+	}
+
+	/**
+	 * Create a new host muxer.
+	 * 
+	 * @param defaultHandler The handler for requests that match no host name
+	 */
+	public StupidHttpHostMuxer(StupidHttpHandler defaultHandler) {
+		this.defaultHandler = defaultHandler;
+	}
+
+	/**
+	 * Add a handler for a host name.
+	 * 
+	 * @param host The host name, such as "example.com", or a wildcard for its subdomains, such as "*.example.com"
+	 * @param handler The handler to associate with the host name
+	 */
+	public void setHost(String host, StupidHttpHandler handler) {
+		host = normalize(host.trim());
+		if (host.startsWith("*.")) {
+			this.wildcards.put(host.substring(1), handler);
+		} else {
+			this.hosts.put(host, handler);
+		}
+	}
+
+	/**
+	 * Remove the handler for a host name.
+	 * 
+	 * @param host The host name or wildcard it was added with
+	 */
+	public void removeHost(String host) {
+		host = normalize(host.trim());
+		if (host.startsWith("*.")) {
+			this.wildcards.remove(host.substring(1));
+		} else {
+			this.hosts.remove(host);
+		}
+	}
+
+	/**
+	 * Sets the handler that handles all requests that match no host name.
+	 * 
+	 * @param defaultHandler The handler
+	 */
+	public void setDefaultHandler(StupidHttpHandler defaultHandler) {
+		this.defaultHandler = defaultHandler;
+	}
+
+	/**
+	 * Dispatches a handler to handle the request based on the request's host.
+	 */
+	@Override
+	public StupidHttpResponse handle(StupidHttpRequest req) {
+		return this.match(req.getHeader("host")).handle(req);
+	}
+
+	/**
+	 * Resolve the handler for a host.
+	 * 
+	 * @param host The value of a Host header, possibly with a port; may be null
+	 * @return The handler that matches the host, or the default handler
+	 */
+	public StupidHttpHandler match(String host) {
+		if (host == null) {
+			return this.defaultHandler;
+		}
+		host = normalize(host);
+		StupidHttpHandler handler = this.hosts.get(host);
+		if (handler != null) {
+			return handler;
+		}
+		if (!this.wildcards.isEmpty()) {
+			for (int i = host.indexOf('.'); i > 0; i = host.indexOf('.', i + 1)) {
+				handler = this.wildcards.get(host.substring(i));
+				if (handler != null) {
+					return handler;
+				}
+			}
+		}
+		return this.defaultHandler;
+	}
+
+	/**
+	 * @param host A host name, possibly with a port, such as "Example.com:8080" or "[::1]:8080"
+	 * @return The host name in lower case, without the port and a trailing dot
+	 */
+	private static String normalize(String host) {
+		int end = host.length();
+		int colon = host.lastIndexOf(':');
+		if (colon >= 0 && colon > host.lastIndexOf(']')) { // not part of an IPv6 address
+			end = colon;
+		}
+		if (end > 0 && host.charAt(end - 1) == '.') {
+			end--;
+		}
+		if (end < host.length()) {
+			host = host.substring(0, end);
+		}
+		return host.toLowerCase(Locale.ROOT); // the same string if it is lower case already
+	}
+}
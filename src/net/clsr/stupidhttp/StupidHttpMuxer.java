@@ -1,8 +1,11 @@
 package net.clsr.stupidhttp;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * StupidHttpMuxer is a handler that dispatches other handlers based on the request path.
@@ -12,12 +15,25 @@ import java.util.Map;
  * Otherwise, only the exact string will match.
  * If there are multiple matches, the handler with the longest match path that matches will be chosen.
  * For example, if the request path is "/foo/bar/baz" and we have "/foo/", "/foo/bar/" and "/foo/bar/quux" handlers, the "/foo/bar/" one will be chosen.
+ * The paths are kept in a prefix trie (see {@link StupidHttpRouteTrie}), so a handler is found in time proportional to the length of the request path,
+ * not the number of handlers.
+ * 
+ * Paths may contain parameters: a segment "{name}" matches any non-empty path segment, as in "/users/{id}/orders/{orderId}",
+ * and a last segment "{name...}" matches the rest of the path, like a directory path does.
+ * The matched values are available from {@link StupidHttpRequest#getPathParameter(String)}.
+ * A path that matches literally wins over one that needs a parameter.
+ * 
+ * Handlers may be added for a single request method, given in any case. A path that only has handlers for other methods is answered with
+ * {@link StupidHttpStatus#MethodNotAllowed} and an Allow header listing them; HEAD requests are handled by the GET handler if there is no HEAD one.
  * 
  * @author Marko Ceferin <marko@cefer.in>
  * @version 1.0
  */
 public class StupidHttpMuxer implements StupidHttpHandler {
-	private Map<String, StupidHttpHandler> handlers = Collections.synchronizedMap(new HashMap<String, StupidHttpHandler>());
+	private static final String[] NO_NAMES = new String[0];
+	// replaced as a whole on every change, so requests are routed without taking the lock that guards changes
+	private volatile StupidHttpRouteTrie<Route> routes = new StupidHttpRouteTrie<Route>();
+	private final Map<String, Route> patterns = new HashMap<String, Route>(); // by pattern without parameter names, guarded by this
 	private StupidHttpHandler handle404 = StupidHttpStatus.handle404;
 
 	/**
@@ -32,7 +48,92 @@ public class StupidHttpMuxer implements StupidHttpHandler {
 	 * @param handler The handler to associate with the path
 	 */
 	public void setHandler(String path, StupidHttpHandler handler) {
-		this.handlers.put(path, handler);
+		this.addRoute(null, path, handler, null);
+	}
+
+	/**
+	 * Add a handler for a path that accepts request bodies up to a different length than the server default.
+	 * 
+	 * @param path The path to match; if it ends with /, it also matches all sub-folders and files
+	 * @param handler The handler to associate with the path
+	 * @param maxBodyLength The maximum request body length in bytes (see {@link StupidHttpRequest#setMaxBodyLength(long)})
+	 */
+	public void setHandler(String path, StupidHttpHandler handler, long maxBodyLength) {
+		this.addRoute(null, path, handler, maxBodyLength);
+	}
+
+	/**
+	 * Add a handler for requests with a method to a path.
+	 * 
+	 * @param method The request method, such as "GET"
+	 * @param path The path to match; if it ends with /, it also matches all sub-folders and files
+	 * @param handler The handler to associate with the method and path
+	 */
+	public void setHandler(String method, String path, StupidHttpHandler handler) {
+		this.addRoute(method, path, handler, null);
+	}
+
+	/**
+	 * Add a handler for requests with a method to a path that accepts request bodies up to a different length than the server default.
+	 * 
+	 * @param method The request method, such as "POST"
+	 * @param path The path to match; if it ends with /, it also matches all sub-folders and files
+	 * @param handler The handler to associate with the method and path
+	 * @param maxBodyLength The maximum request body length in bytes (see {@link StupidHttpRequest#setMaxBodyLength(long)})
+	 */
+	public void setHandler(String method, String path, StupidHttpHandler handler, long maxBodyLength) {
+		this.addRoute(method, path, handler, maxBodyLength);
+	}
+
+	/**
+	 * Compile a path and add its handler, copying the routes.
+	 * 
+	 * @throws IllegalArgumentException The method isn't a token, or the path has a malformed parameter
+	 */
+	private synchronized void addRoute(String method, String path, StupidHttpHandler handler, Long maxBodyLength) {
+		if (method != null) {
+			method = method.trim();
+			for (int i = 0; i < method.length() || i == 0; i++) {
+				if (i == method.length() || !StupidHttpParser.isTokenChar(method.charAt(i))) {
+					throw new IllegalArgumentException("invalid method: " + method);
+				}
+			}
+			method = method.toUpperCase(Locale.ROOT); // the parser reports methods in upper case
+		}
+		StringBuilder key = new StringBuilder(path.length());
+		List<String> names = new ArrayList<String>();
+		boolean rest = false;
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c != '{' && c != '}') {
+				key.append(c);
+				continue;
+			}
+			int end = path.indexOf('}', i);
+			boolean last = end == path.length() - 1;
+			if (c == '}' || end < 0 || (i > 0 && path.charAt(i - 1) != '/') || (!last && path.charAt(end + 1) != '/')) {
+				throw new IllegalArgumentException("invalid path parameter: " + path);
+			}
+			String name = path.substring(i + 1, end);
+			if (name.endsWith("...") && last && i > 0) {
+				name = name.substring(0, name.length() - 3);
+				rest = true; // matched like a directory path
+			} else {
+				key.append("{}");
+			}
+			if (name.isEmpty() || name.indexOf('{') >= 0 || name.indexOf('/') >= 0 || name.endsWith("...")) {
+				throw new IllegalArgumentException("invalid path parameter: " + path);
+			}
+			names.add(name);
+			i = end;
+		}
+
+		Endpoint endpoint = new Endpoint(handler, maxBodyLength, names.isEmpty() ? NO_NAMES : names.toArray(new String[names.size()]), rest);
+		String pattern = key.toString();
+		Route route = this.patterns.get(pattern);
+		route = route == null ? new Route(method, endpoint) : route.with(method, endpoint);
+		this.patterns.put(pattern, route);
+		this.routes = this.routes.put(pattern, route); // copy on write
 	}
 
 	/**
@@ -46,45 +147,145 @@ public class StupidHttpMuxer implements StupidHttpHandler {
 	}
 
 	/**
-	 * Dispatches a handler to handle the request based on the request's path.
+	 * Dispatches a handler to handle the request based on the request's path and method.
 	 */
 	@Override
 	public StupidHttpResponse handle(StupidHttpRequest req) {
-		StupidHttpHandler handler = this.match(req.getPath());
-		if (handler == null) {
+		String path = req.getPath();
+		StupidHttpRouteTrie.Match<Route> match = this.routes.get(path);
+		if (match == null) {
 			return this.handle404.handle(req);
 		}
-		return handler.handle(req);
+		Endpoint endpoint = match.getValue().endpoint(req.getMethod());
+		if (endpoint == null) {
+			return match.getValue().notAllowed.handle(req);
+		}
+		if (endpoint.names.length > 0) {
+			req.setPathParameters(endpoint.names, endpoint.values(path, match));
+		}
+		if (endpoint.maxBodyLength != null) {
+			req.setMaxBodyLength(endpoint.maxBodyLength);
+		}
+		return endpoint.handler.handle(req);
 	}
 
 	/**
 	 * Resolve the handler for a path.
 	 * 
 	 * @param path The request path
-	 * @return The handler that matches that path
+	 * @return The handler that matches that path for GET requests; null if none matches
 	 */
 	public StupidHttpHandler match(String path) {
-		StupidHttpHandler handler = null;
-		int maxPatternLength = 0;
-		for (Map.Entry<String, StupidHttpHandler> e : this.handlers.entrySet()) {
-			if (!this.matchPath(e.getKey(), path)) {
-				continue;
+		return this.match("GET", path);
+	}
+
+	/**
+	 * Resolve the handler for a request method and path.
+	 * 
+	 * @param method The request method
+	 * @param path The request path
+	 * @return The handler that matches that method and path; null if none matches
+	 */
+	public StupidHttpHandler match(String method, String path) {
+		StupidHttpRouteTrie.Match<Route> match = this.routes.get(path);
+		Endpoint endpoint = match == null ? null : match.getValue().endpoint(method);
+		return endpoint == null ? null : endpoint.handler;
+	}
+
+	/**
+	 * The handlers added for a path, by request method.
+	 */
+	private static final class Route {
+		final Endpoint any; // for methods without their own handler; null if there is none
+		final Map<String, Endpoint> methods;
+		final StupidHttpStaticResponse notAllowed; // null if any is set
+
+		Route(String method, Endpoint endpoint) {
+			this(method == null ? endpoint : null, method == null ? new HashMap<String, Endpoint>() : single(method, endpoint));
+		}
+
+		private Route(Endpoint any, Map<String, Endpoint> methods) {
+			this.any = any;
+			this.methods = methods;
+			this.notAllowed = any == null ? notAllowed(methods) : null;
+		}
+
+		private static Map<String, Endpoint> single(String method, Endpoint endpoint) {
+			Map<String, Endpoint> methods = new HashMap<String, Endpoint>();
+			methods.put(method, endpoint);
+			return methods;
+		}
+
+		/**
+		 * @return A copy of the route with an endpoint added or replaced
+		 */
+		Route with(String method, Endpoint endpoint) {
+			Map<String, Endpoint> methods = new HashMap<String, Endpoint>(this.methods);
+			if (method == null) {
+				return new Route(endpoint, methods);
 			}
-			if (handler == null || e.getKey().length() > maxPatternLength) {
-				maxPatternLength = e.getKey().length();
-				handler = e.getValue();
+			methods.put(method, endpoint);
+			return new Route(this.any, methods);
+		}
+
+		/**
+		 * @return The endpoint for a request method; null if the method isn't allowed
+		 */
+		Endpoint endpoint(String method) {
+			Endpoint endpoint = this.methods.get(method);
+			if (endpoint == null && method.equals("HEAD")) {
+				endpoint = this.methods.get("GET");
 			}
+			return endpoint == null ? this.any : endpoint;
+		}
+
+		/**
+		 * @return The response to methods without a handler, rendered once
+		 */
+		private static StupidHttpStaticResponse notAllowed(Map<String, Endpoint> methods) {
+			TreeSet<String> allowed = new TreeSet<String>(methods.keySet());
+			if (allowed.contains("GET")) {
+				allowed.add("HEAD");
+			}
+			StringBuilder allow = new StringBuilder();
+			for (String method : allowed) {
+				allow.append(allow.length() == 0 ? "" : ", ").append(method);
+			}
+			int code = StupidHttpStatus.MethodNotAllowed;
+			StupidHttpResponse resp = StupidHttpResponse.simpleResponse(code, null, String.format("%d %s", code, StupidHttpStatus.statusText(code)));
+			resp.setHeader(new StupidHttpHeader("allow", allow.toString()));
+			return new StupidHttpStaticResponse(resp);
 		}
-		return handler;
 	}
 
-	private boolean matchPath(String pattern, String path) {
-		if (pattern.length() == 0) {
-			return path.equals("/");
+	/**
+	 * A handler and the settings it was added with.
+	 */
+	private static final class Endpoint {
+		final StupidHttpHandler handler;
+		final Long maxBodyLength; // null for the server default
+		final String[] names; // of the path parameters
+		final boolean rest; // whether the last parameter matches the rest of the path
+
+		Endpoint(StupidHttpHandler handler, Long maxBodyLength, String[] names, boolean rest) {
+			this.handler = handler;
+			this.maxBodyLength = maxBodyLength;
+			this.names = names;
+			this.rest = rest;
 		}
-		if (pattern.charAt(pattern.length() - 1) != '/') { // match filepath, as in /foo/bar.baz
-			return pattern.equals(path);
+
+		/**
+		 * @return The values of the path parameters
+		 */
+		String[] values(String path, StupidHttpRouteTrie.Match<Route> match) {
+			String[] values = new String[this.names.length];
+			for (int i = 0; i < match.getCount(); i++) {
+				values[i] = match.getParameter(path, i);
+			}
+			if (this.rest) {
+				values[values.length - 1] = path.substring(match.getEnd());
+			}
+			return values;
 		}
-		return path.startsWith(pattern); // match a directory path, as in /foo/bar/
 	}
 }
\ No newline at end of file
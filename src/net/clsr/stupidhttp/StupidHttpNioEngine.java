@@ -0,0 +1,589 @@
+package net.clsr.stupidhttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * StupidHttpNioEngine serves connections of a {@link StupidHttpServer} with non-blocking sockets.
+ * 
+ * Every event loop thread owns a selector and the connections assigned to it.
+ * Acceptors are spread over the loops; they distribute new connections round-robin.
+ * Loops read into the connection's {@link StupidHttpParser} until a request is complete, parse it and hand it to the server's executor, which runs the handler and serializes the response.
+ * The response is handed back to the loop as it is serialized and written by the loop; the worker waits when the client falls behind.
+ * A connection doesn't read further requests while one is being handled, so pipelined requests are answered in order.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+class StupidHttpNioEngine {
+	private static final long SELECT_TIMEOUT = 1000;
+	private static final int MAX_UNWRITTEN = 1024 * 64; // 64 KB
+
+	private final StupidHttpServer server;
+	private final ServerSocketChannel[] channels;
+	private final int acceptors;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Create a new engine.
+	 * 
+	 * @param server The server whose handler, executor and settings are used
+	 * @param channels The bound server socket channels to accept connections from
+	 * @param acceptors The number of loops accepting connections
+	 * @param threads The number of event loop threads
+	 * @throws IOException Exception from {@link Selector#open()}
+	 */
+	StupidHttpNioEngine(StupidHttpServer server, ServerSocketChannel[] channels, int acceptors, int threads) throws IOException {
+		this.server = server;
+		this.channels = channels;
+		this.acceptors = Math.max(acceptors, channels.length);
+		this.loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			this.loops[i] = new EventLoop();
+		}
+	}
+
+	/**
+	 * Run the event loops until the server socket channels are closed.
+	 * The calling thread runs the first loop.
+	 * 
+	 * @throws IOException Exception while registering the server socket channels
+	 */
+	void run() throws IOException {
+		for (ServerSocketChannel c : this.channels) {
+			c.configureBlocking(false);
+		}
+		// a channel may be registered with several selectors; each ready loop then tries to accept
+		for (int i = 0; i < this.acceptors; i++) {
+			this.channels[i % this.channels.length].register(this.loops[i % this.loops.length].selector, SelectionKey.OP_ACCEPT);
+		}
+		for (int i = 1; i < this.loops.length; i++) {
+			Thread t = new Thread(this.loops[i], "stupidhttp-loop-" + i);
+			t.start();
+		}
+		this.loops[0].run();
+		for (EventLoop loop : this.loops) {
+			loop.shutdown();
+		}
+	}
+
+	private void accept(ServerSocketChannel channel) {
+		for (;;) {
+			SocketChannel c;
+			try {
+				c = channel.accept();
+			} catch (IOException e) {
+				this.server.logError(e);
+				return;
+			}
+			if (c == null) {
+				return;
+			}
+			try {
+				this.server.configureSocket(c.socket());
+			} catch (IOException e) {
+				this.server.logError(e);
+			}
+			EventLoop loop = this.loops[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+			loop.register(c);
+		}
+	}
+
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean running = true;
+		private long lastScan = System.currentTimeMillis();
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Run a task on the loop thread.
+		 * 
+		 * @param task The task
+		 */
+		void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+
+		void register(final SocketChannel c) {
+			this.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						c.configureBlocking(false);
+						Connection conn = new Connection(EventLoop.this, c);
+						conn.key = c.register(EventLoop.this.selector, SelectionKey.OP_READ, conn);
+					} catch (IOException e) {
+						StupidHttpNioEngine.this.server.logError(e);
+						close(c);
+					}
+				}
+			});
+		}
+
+		void shutdown() {
+			this.running = false;
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (this.running && StupidHttpNioEngine.this.channels[0].isOpen()) {
+					this.selector.select(SELECT_TIMEOUT);
+					Runnable task;
+					while ((task = this.tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							StupidHttpNioEngine.this.accept((ServerSocketChannel) key.channel());
+							continue;
+						}
+						Connection conn = (Connection) key.attachment();
+						if (key.isReadable()) {
+							conn.read();
+						} else if (key.isWritable()) {
+							conn.write();
+						}
+					}
+					this.closeIdle();
+				}
+			} catch (IOException e) {
+				StupidHttpNioEngine.this.server.logError(e);
+			} catch (ClosedSelectorException e) {
+				// shut down
+			} finally {
+				for (SelectionKey key : this.selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+				try {
+					this.selector.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		private void closeIdle() {
+			long now = System.currentTimeMillis();
+			if (now - this.lastScan < SELECT_TIMEOUT) {
+				return;
+			}
+			this.lastScan = now;
+			int timeout = StupidHttpNioEngine.this.server.getKeepAliveTimeout();
+			for (SelectionKey key : this.selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					Connection conn = (Connection) key.attachment();
+					// a busy connection is only closed while its response is stuck, which wakes up the worker waiting to write it;
+					// a handler that takes long before it writes anything is left alone
+					if ((!conn.busy || !conn.output.isEmpty()) && now - conn.lastActivity > timeout) {
+						conn.close();
+					}
+				}
+			}
+		}
+	}
+
+	private final class Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final String localAddress;
+		private final String remoteAddress;
+		private SelectionKey key;
+		private final StupidHttpParser parser = new StupidHttpParser(null);
+		private StupidHttpRequest pending = null;
+		private long pendingLength = -1; // -1 until the head is parsed
+		private StupidHttpChunkedInputStream pendingChunks = null;
+		private ByteArrayOutputStream pendingBody = null;
+		private final Queue<Output> output = new ArrayDeque<Output>(); // loop thread only
+		private volatile ResponseStream stream = null;
+		private final StupidHttpWriteBuffer buffer = new StupidHttpWriteBuffer(null, StupidHttpWriteBuffer.SIZE); // reused by the sequential responses
+		private boolean responseDone = false;
+		private boolean closeAfterWrite;
+		private boolean busy = false;
+		private int requests = 0;
+		private long lastActivity = System.currentTimeMillis();
+
+		Connection(EventLoop loop, SocketChannel channel) throws IOException {
+			this.loop = loop;
+			this.channel = channel;
+			this.localAddress = channel.socket().getLocalSocketAddress().toString();
+			this.remoteAddress = channel.socket().getRemoteSocketAddress().toString();
+		}
+
+		void read() {
+			int n;
+			try {
+				n = this.parser.readFrom(this.channel);
+			} catch (IOException e) {
+				this.close();
+				return;
+			}
+			if (n < 0) {
+				this.close();
+				return;
+			}
+			this.lastActivity = System.currentTimeMillis();
+			this.process();
+		}
+
+		private void process() {
+			if (this.busy) {
+				return;
+			}
+			final StupidHttpServer server = StupidHttpNioEngine.this.server;
+			StupidHttpRequest req;
+			try {
+				if (this.pending == null) {
+					this.pending = new StupidHttpRequest(this.localAddress, this.remoteAddress);
+				}
+				if (this.pendingLength < 0) {
+					if (!this.parser.parseHead(this.pending)) {
+						this.key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					long length = this.pending.getBodyLength();
+					if (length < 0) {
+						// chunked: decoded as it arrives, so only the decoded body is held in memory
+						this.pendingChunks = new StupidHttpChunkedInputStream(this.parser, server.getMaxBodyLength());
+						this.pendingBody = new ByteArrayOutputStream();
+						length = 0;
+					}
+					// the body is buffered whole, so the server's limit is enforced before it is read
+					if (length > server.getMaxBodyLength()) {
+						this.fail(new StupidHttpException(StupidHttpException.BODY_TOO_LONG, "body too long: " + length + " bytes"), StupidHttpStatus.RequestEntityTooLarge);
+						return;
+					}
+					this.pendingLength = length;
+				}
+				req = this.pending;
+				if (this.pendingChunks != null) {
+					if (!this.pendingChunks.drainTo(this.pendingBody)) {
+						this.key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					req.setBufferedBody(this.pendingBody.toByteArray());
+					this.pendingChunks = null;
+					this.pendingBody = null;
+				} else {
+					if (this.parser.buffered() < this.pendingLength) {
+						this.key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					req.readBody(this.parser, (int) this.pendingLength);
+				}
+				this.pending = null;
+				this.pendingLength = -1;
+			} catch (StupidHttpException e) {
+				this.fail(e, StupidHttpStatus.BadRequest);
+				return;
+			} catch (IOException e) {
+				this.fail(e, server.bodyErrorCode(e));
+				return;
+			}
+
+			this.busy = true;
+			this.requests++;
+			this.key.interestOps(0);
+			final StupidHttpRequest request = req;
+			final boolean mayKeepAlive = this.requests < server.getMaxRequestsPerConnection();
+			try {
+				server.dispatch(new Runnable() {
+					@Override
+					public void run() {
+						StupidHttpResponse resp = server.serve(request);
+						boolean keepAlive = server.prepareConnection(request, resp, mayKeepAlive && request.isKeepAlive());
+						server.logAccess(request, resp);
+						Connection.this.respond(resp, !request.isHead() && StupidHttpStatus.allowsBody(resp.getCode()), !keepAlive);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				this.output.add(new Output(ByteBuffer.wrap(server.getOverloadResponse()), 0));
+				this.finish(true);
+			}
+		}
+
+		private void fail(Exception e, int code) {
+			StupidHttpNioEngine.this.server.logError(e);
+			this.busy = true;
+			this.key.interestOps(0);
+			// serialized here and queued whole: a ResponseStream would make the loop thread wait for credit that only it gives back
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			try {
+				StupidHttpNioEngine.this.server.errorResponse(e, code).writeTo(buf);
+			} catch (IOException e1) {} // not thrown by ByteArrayOutputStream
+			this.output.add(new Output(ByteBuffer.wrap(buf.toByteArray()), 0));
+			this.finish(true);
+		}
+
+		/**
+		 * Serialize a response and queue it for writing as it is produced; must not be called on the loop thread.
+		 * Blocks while too much of it is waiting to be written.
+		 */
+		private void respond(StupidHttpResponse resp, boolean writeBody, final boolean close) {
+			final ResponseStream stream = new ResponseStream();
+			this.stream = stream;
+			try {
+				this.buffer.setOutput(stream);
+				resp.writeTo(this.buffer, stream, writeBody);
+			} catch (IOException e) {
+				StupidHttpNioEngine.this.server.logError(e, Level.FINE);
+				stream.abort();
+				return;
+			} catch (RuntimeException e) {
+				StupidHttpNioEngine.this.server.logError(e);
+				stream.abort();
+				return;
+			}
+			this.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					Connection.this.finish(close);
+				}
+			});
+		}
+
+		private void send(final Output out) {
+			this.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!Connection.this.channel.isOpen()) {
+						out.release();
+						return;
+					}
+					Connection.this.output.add(out);
+					Connection.this.write();
+				}
+			});
+		}
+
+		private void finish(boolean close) {
+			this.responseDone = true;
+			this.closeAfterWrite = close;
+			this.write();
+		}
+
+		void write() {
+			if (!this.channel.isOpen()) {
+				return;
+			}
+			try {
+				while (!this.output.isEmpty()) {
+					Output out = this.output.peek();
+					long remaining = out.remaining();
+					boolean done = out.writeTo(this.channel);
+					if (done || out.remaining() != remaining) {
+						this.lastActivity = System.currentTimeMillis(); // only progress counts, a client that stopped reading times out
+					}
+					if (!done) {
+						this.key.interestOps(SelectionKey.OP_WRITE);
+						return;
+					}
+					this.output.poll();
+					out.release();
+					if (this.stream != null) {
+						this.stream.written(out.credit);
+					}
+				}
+			} catch (IOException e) {
+				this.close();
+				return;
+			}
+			this.key.interestOps(0);
+			if (!this.responseDone) {
+				return; // the worker is still producing the response
+			}
+			this.responseDone = false;
+			this.stream = null;
+			if (this.closeAfterWrite) {
+				this.close();
+				return;
+			}
+			this.busy = false;
+			this.process();
+		}
+
+		void close() {
+			if (this.key != null) {
+				this.key.cancel();
+			}
+			StupidHttpNioEngine.close(this.channel);
+			Output out;
+			while ((out = this.output.poll()) != null) {
+				out.release();
+			}
+			ResponseStream stream = this.stream;
+			if (stream != null) {
+				stream.abort();
+			}
+		}
+
+		/**
+		 * The stream a worker serializes a response into.
+		 * Every write is copied and handed to the loop; the writer blocks while more than {@link #MAX_UNWRITTEN} bytes wait to be written,
+		 * so a streamed body is sent at the pace of the client without being buffered whole.
+		 */
+		private final class ResponseStream extends OutputStream implements StupidHttpBody.FileSink {
+			private final Semaphore credit = new Semaphore(MAX_UNWRITTEN);
+			private volatile boolean aborted = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int n = Math.min(len, MAX_UNWRITTEN);
+					try {
+						this.credit.acquire(n);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+					if (this.aborted) {
+						throw new IOException("connection closed");
+					}
+					Connection.this.send(new Output(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + n)), n));
+					off += n;
+					len -= n;
+				}
+			}
+
+			/**
+			 * Queue a file region; it is transferred by the loop without passing through the heap, so it doesn't count against the unwritten limit.
+			 */
+			@Override
+			public void sendFile(FileChannel file, long position, long count) throws IOException {
+				if (this.aborted) {
+					file.close();
+					throw new IOException("connection closed");
+				}
+				Connection.this.send(new Output(file, position, count));
+			}
+
+			/**
+			 * Queue a buffer without copying it; like a file region, it doesn't count against the unwritten limit.
+			 */
+			@Override
+			public void sendBuffer(ByteBuffer buf) throws IOException {
+				if (this.aborted) {
+					throw new IOException("connection closed");
+				}
+				Connection.this.send(new Output(buf, 0));
+			}
+
+			void written(int n) {
+				this.credit.release(n);
+			}
+
+			/**
+			 * Close the connection and wake up the writer; on any thread.
+			 */
+			void abort() {
+				if (this.aborted) {
+					return;
+				}
+				this.aborted = true;
+				this.credit.release(MAX_UNWRITTEN);
+				Connection.this.loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						Connection.this.close();
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * A piece of a response waiting to be written: a buffer or a region of a file.
+	 */
+	private static final class Output {
+		private final ByteBuffer buf;
+		private final FileChannel file;
+		private long position;
+		private long remaining;
+		private final int credit; // bytes of the unwritten limit the piece holds
+
+		Output(ByteBuffer buf, int credit) {
+			this.buf = buf;
+			this.file = null;
+			this.credit = credit;
+		}
+
+		Output(FileChannel file, long position, long count) {
+			this.buf = null;
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+			this.credit = 0;
+		}
+
+		/**
+		 * @return The number of bytes left to write
+		 */
+		long remaining() {
+			return this.buf != null ? this.buf.remaining() : this.remaining;
+		}
+
+		/**
+		 * @return Whether the piece has been written completely
+		 */
+		boolean writeTo(SocketChannel channel) throws IOException {
+			if (this.buf != null) {
+				channel.write(this.buf);
+				return !this.buf.hasRemaining();
+			}
+			long n = StupidHttpBody.transfer(this.file, this.position, this.remaining, channel);
+			this.position += n;
+			this.remaining -= n;
+			return this.remaining == 0;
+		}
+
+		void release() {
+			if (this.file != null) {
+				try {
+					this.file.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private static void close(SocketChannel c) {
+		try {
+			c.close();
+		} catch (IOException e) {}
+	}
+}
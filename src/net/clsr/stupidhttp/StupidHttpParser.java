@@ -0,0 +1,382 @@
+package net.clsr.stupidhttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * StupidHttpParser parses request heads from a reusable buffer.
+ * 
+ * One parser is kept for the lifetime of a connection, so its buffer is reused by every request on it.
+ * The end of the head is found by scanning the buffered bytes, continuing where the previous scan stopped when more bytes arrive.
+ * The request line is split and recognized on the bytes directly, without regular expressions or intermediate strings.
+ * The header lines are copied into one array per request and only decoded to strings when a header is looked up.
+ * 
+ * The parser is also the input stream of the connection: bytes following a head (the body and pipelined requests) are read from the buffer first,
+ * then from the underlying stream.
+ * The NIO engine has no underlying stream and fills the buffer from the socket channel instead.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+class StupidHttpParser extends InputStream {
+	static final int MAX_HEAD_LENGTH = 1024 * 64; // 64 KB
+	private static final byte[] GET = { 'G', 'E', 'T' };
+	private static final byte[] POST = { 'P', 'O', 'S', 'T' };
+	private static final byte[] HEAD = { 'H', 'E', 'A', 'D' };
+	private static final byte[] HTTP = { 'H', 'T', 'T', 'P', '/' };
+	private static final byte[] HTTP10 = { 'H', 'T', 'T', 'P', '/', '1', '.', '0' };
+	private static final byte[] HTTP11 = { 'H', 'T', 'T', 'P', '/', '1', '.', '1' };
+
+	private final InputStream in;
+	private byte[] buf = new byte[1024 * 8];
+	private ByteBuffer channelBuf = ByteBuffer.wrap(this.buf);
+	private int pos = 0; // start of unread bytes
+	private int limit = 0; // end of buffered bytes
+	private int scan = 0; // where the search for the end of the head continues
+	private int lineBytes = 0; // bytes other than CR seen on the current line while scanning
+	private int[] offsets = new int[4 * 16]; // scratch space for header offsets
+
+	/**
+	 * Create a parser that reads from a stream.
+	 * 
+	 * @param in The stream; null if the buffer is filled with {@link #readFrom(ReadableByteChannel)}
+	 */
+	StupidHttpParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read and parse a request head, blocking until it is complete.
+	 * 
+	 * @param req The request to initialize
+	 * @throws IOException Exception from the underlying stream
+	 * @throws StupidHttpException The head is invalid or the stream ended before it was complete
+	 */
+	void readHead(StupidHttpRequest req) throws IOException, StupidHttpException {
+		while (!this.parseHead(req)) {
+			if (!this.fill()) {
+				if (this.pos == this.limit) {
+					throw new StupidHttpException(StupidHttpException.UNEXPECTED_END, "no method header");
+				}
+				throw new StupidHttpException(StupidHttpException.UNEXPECTED_END, "unexpected end of headers");
+			}
+		}
+	}
+
+	/**
+	 * Parse a request head if it has been completely buffered.
+	 * 
+	 * @param req The request to initialize
+	 * @return Whether the head was complete
+	 * @throws StupidHttpException The head is invalid or too long
+	 */
+	boolean parseHead(StupidHttpRequest req) throws StupidHttpException {
+		if (this.scan < this.pos) {
+			// the body of the previous request was read past the point where the last scan ended
+			this.scan = this.pos;
+			this.lineBytes = 0;
+		}
+		// tolerate empty lines before the request line (RFC 7230 section 3.5)
+		if (this.scan == this.pos) {
+			while (this.pos < this.limit && (this.buf[this.pos] == '\r' || this.buf[this.pos] == '\n')) {
+				this.pos++;
+			}
+			this.scan = this.pos;
+		}
+
+		int end = -1;
+		for (int i = this.scan; i < this.limit; i++) {
+			byte b = this.buf[i];
+			if (b == '\n') {
+				if (this.lineBytes == 0) {
+					end = i + 1;
+					break;
+				}
+				this.lineBytes = 0;
+			} else if (b != '\r') {
+				this.lineBytes++;
+			}
+		}
+		if ((end < 0 ? this.limit : end) - this.pos > MAX_HEAD_LENGTH) {
+			throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "request head too long");
+		}
+		if (end < 0) {
+			this.scan = this.limit;
+			return false;
+		}
+
+		int start = this.pos;
+		this.pos = end;
+		this.scan = end;
+		this.lineBytes = 0;
+		this.parse(req, start, end);
+		return true;
+	}
+
+	private void parse(StupidHttpRequest req, int start, int end) throws StupidHttpException {
+		byte[] b = this.buf;
+		int lineEnd = this.lineEnd(start, end);
+
+		// request line: method, path and version separated by whitespace
+		int methodEnd = this.skipToken(start, lineEnd);
+		int pathStart = this.skipSpace(methodEnd, lineEnd);
+		int pathEnd = this.skipToken(pathStart, lineEnd);
+		int versionStart = this.skipSpace(pathEnd, lineEnd);
+		int versionEnd = this.skipToken(versionStart, lineEnd);
+		if (methodEnd == start || pathEnd == pathStart || versionEnd == versionStart || this.skipSpace(versionEnd, lineEnd) != lineEnd) {
+			throw new StupidHttpException(StupidHttpException.INVALID_METHOD, this.string(start, lineEnd));
+		}
+
+		String method;
+		if (this.equalsIgnoreCase(start, methodEnd, GET)) {
+			method = "GET";
+		} else if (this.equalsIgnoreCase(start, methodEnd, POST)) {
+			method = "POST";
+		} else if (this.equalsIgnoreCase(start, methodEnd, HEAD)) {
+			method = "HEAD";
+		} else {
+			// any other token (RFC 9110 section 9.1), so handlers and muxer routes may answer it or reply 405
+			for (int i = start; i < methodEnd; i++) {
+				if (!isTokenChar(b[i])) {
+					throw new StupidHttpException(StupidHttpException.INVALID_METHOD, this.string(start, methodEnd));
+				}
+			}
+			method = this.string(start, methodEnd).toUpperCase(Locale.ROOT); // like the methods above, which are matched without case
+		}
+
+		String version;
+		if (this.equalsIgnoreCase(versionStart, versionEnd, HTTP11)) {
+			version = "HTTP/1.1";
+		} else if (this.equalsIgnoreCase(versionStart, versionEnd, HTTP10)) {
+			version = "HTTP/1.0";
+		} else {
+			if (versionEnd - versionStart <= HTTP.length || !this.equalsIgnoreCase(versionStart, versionStart + HTTP.length, HTTP)) {
+				throw new StupidHttpException(StupidHttpException.INVALID_METHOD, this.string(versionStart, versionEnd));
+			}
+			for (int i = versionStart + HTTP.length; i < versionEnd; i++) {
+				if ((b[i] < '0' || b[i] > '9') && b[i] != '.') {
+					throw new StupidHttpException(StupidHttpException.INVALID_METHOD, this.string(versionStart, versionEnd));
+				}
+			}
+			version = this.string(versionStart, versionEnd).toUpperCase();
+		}
+
+		String path = this.string(pathStart, pathEnd);
+
+		// header lines: "name: value", with optional whitespace around the value
+		int blockStart = this.next(lineEnd, end);
+		int count = 0;
+		for (int line = blockStart; line < end;) {
+			int eol = this.lineEnd(line, end);
+			if (eol == line) {
+				break; // the empty line terminating the head
+			}
+			int colon = line;
+			while (colon < eol && b[colon] != ':') {
+				colon++;
+			}
+			int nameStart = this.skipSpace(line, colon);
+			int nameEnd = colon;
+			while (nameEnd > nameStart && (b[nameEnd - 1] == ' ' || b[nameEnd - 1] == '\t')) {
+				nameEnd--;
+			}
+			int valueStart = colon < eol ? this.skipSpace(colon + 1, eol) : eol;
+			int valueEnd = eol;
+			while (valueEnd > valueStart && (b[valueEnd - 1] == ' ' || b[valueEnd - 1] == '\t')) {
+				valueEnd--;
+			}
+			if (colon == eol || nameStart == nameEnd || valueStart == valueEnd) {
+				throw new StupidHttpException(StupidHttpException.INVALID_HEADER, this.string(line, eol));
+			}
+			if (this.offsets.length < 4 * (count + 1)) {
+				this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+			}
+			this.offsets[4 * count] = nameStart - blockStart;
+			this.offsets[4 * count + 1] = nameEnd - blockStart;
+			this.offsets[4 * count + 2] = valueStart - blockStart;
+			this.offsets[4 * count + 3] = valueEnd - blockStart;
+			count++;
+			line = this.next(eol, end);
+		}
+
+		byte[] block = Arrays.copyOfRange(b, blockStart, end);
+		req.init(method, path, version, block, Arrays.copyOf(this.offsets, 4 * count), count);
+	}
+
+	/**
+	 * @return The index of the CR or LF ending the line
+	 */
+	private int lineEnd(int start, int end) {
+		int i = start;
+		while (i < end && this.buf[i] != '\n') {
+			i++;
+		}
+		if (i > start && this.buf[i - 1] == '\r') {
+			i--;
+		}
+		return i;
+	}
+
+	/**
+	 * @return The index of the start of the next line
+	 */
+	private int next(int lineEnd, int end) {
+		if (lineEnd < end && this.buf[lineEnd] == '\r') {
+			lineEnd++;
+		}
+		return lineEnd + 1;
+	}
+
+	private int skipToken(int i, int end) {
+		while (i < end && this.buf[i] != ' ' && this.buf[i] != '\t') {
+			i++;
+		}
+		return i;
+	}
+
+	private int skipSpace(int i, int end) {
+		while (i < end && (this.buf[i] == ' ' || this.buf[i] == '\t')) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return Whether a byte may appear in a token, such as a method name (RFC 9110 section 5.6.2)
+	 */
+	static boolean isTokenChar(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c > ' ' && c < 0x7f && "!#$%&'*+-.^_`|~".indexOf(c) >= 0);
+	}
+
+	private boolean equalsIgnoreCase(int start, int end, byte[] upper) {
+		if (end - start != upper.length) {
+			return false;
+		}
+		for (int i = 0; i < upper.length; i++) {
+			byte c = this.buf[start + i];
+			if (c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			}
+			if (c != upper[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String string(int start, int end) {
+		return new String(this.buf, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read more bytes from the underlying stream into the buffer.
+	 * 
+	 * @return False if the stream ended
+	 * @throws IOException Exception from the underlying stream
+	 */
+	boolean fill() throws IOException {
+		if (this.in == null) {
+			return false;
+		}
+		this.makeRoom();
+		int n = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+		if (n < 0) {
+			return false;
+		}
+		this.limit += n;
+		return true;
+	}
+
+	/**
+	 * Wait until at least one byte is available.
+	 * 
+	 * @return False if the stream ended
+	 * @throws IOException Exception from the underlying stream
+	 */
+	boolean await() throws IOException {
+		return this.pos < this.limit || this.fill();
+	}
+
+	/**
+	 * Read bytes from a channel into the buffer.
+	 * The buffer grows as needed, so a whole request can be collected before it is parsed.
+	 * 
+	 * @param channel The channel to read from
+	 * @return The number of bytes read, or -1 at the end of the stream
+	 * @throws IOException Exception from {@link ReadableByteChannel#read(ByteBuffer)}
+	 */
+	int readFrom(ReadableByteChannel channel) throws IOException {
+		this.makeRoom();
+		this.channelBuf.limit(this.buf.length).position(this.limit);
+		int n = channel.read(this.channelBuf);
+		if (n > 0) {
+			this.limit += n;
+		}
+		return n;
+	}
+
+	/**
+	 * @return The number of unread bytes in the buffer
+	 */
+	int buffered() {
+		return this.limit - this.pos;
+	}
+
+	private void makeRoom() {
+		if (this.pos == this.limit) {
+			this.pos = this.limit = this.scan = 0;
+		}
+		if (this.limit < this.buf.length) {
+			return;
+		}
+		if (this.pos > 0) {
+			System.arraycopy(this.buf, this.pos, this.buf, 0, this.limit - this.pos);
+			this.limit -= this.pos;
+			this.scan -= this.pos;
+			this.pos = 0;
+		} else {
+			this.buf = Arrays.copyOf(this.buf, this.buf.length * 2);
+			this.channelBuf = ByteBuffer.wrap(this.buf);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (this.pos == this.limit && !this.fill()) {
+			return -1;
+		}
+		return this.buf[this.pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (this.pos == this.limit) {
+			if (this.in == null) {
+				return -1;
+			}
+			if (len >= this.buf.length) {
+				return this.in.read(b, off, len); // large reads bypass the buffer
+			}
+			if (!this.fill()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, this.limit - this.pos);
+		System.arraycopy(this.buf, this.pos, b, off, n);
+		this.pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.limit - this.pos + (this.in == null ? 0 : this.in.available());
+	}
+}
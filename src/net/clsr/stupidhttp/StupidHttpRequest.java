@@ -1,13 +1,20 @@
 package net.clsr.stupidhttp;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * StupidHttpRequest represents a HTTP request.
@@ -16,15 +23,32 @@ import java.util.List;
  * @version 1.0
  */
 public class StupidHttpRequest {
-	private static final int MAX_BODY_LENGTH = 1024 * 1024 * 16; // 16 MB
+	static final long MAX_BODY_LENGTH = 1024 * 1024 * 16; // 16 MB
+	private static final int MAX_DISCARD_LENGTH = 1024 * 64; // 64 KB
 
 	private String localAddress;
 	private String remoteAddress;
 	private String method = "GET";
 	private String path = null;
-	private List<StupidHttpHeader> headers = new ArrayList<StupidHttpHeader>();
-	private List<StupidHttpCookie> cookies = new ArrayList<StupidHttpCookie>();
+	private String version = "HTTP/1.0";
+	// header lines of a parsed request, with the start and end of every name and value in offsets;
+	// the headers are only decoded to strings when they are looked up
+	private byte[] headerBlock = null;
+	private int[] headerOffsets = null;
+	private int headerCount = 0;
+	private StupidHttpHeader[] headers = new StupidHttpHeader[0];
+	// lower-cased names, the next header with the same name (or -1) and a hash table of the first header with each name (index + 1)
+	private String[] headerNames = new String[0];
+	private int[] headerNext = new int[0];
+	private int[] headerIndex = new int[1];
+	private List<StupidHttpCookie> cookies = null;
 	private byte[] body = null;
+	private StupidHttpParser bodySource = null; // the connection, while the body hasn't been read
+	private long bodyLength = 0;
+	private InputStream bodyStream = null;
+	private long maxBodyLength = MAX_BODY_LENGTH;
+	private String[] pathParameterNames = null;
+	private String[] pathParameters = null;
 
 	/**
 	 * Read a request from a socket.
@@ -71,12 +95,77 @@ public class StupidHttpRequest {
 		this.remoteAddress = remoteAddress;
 		this.method = method.toUpperCase();
 		this.path = path;
-		for (StupidHttpHeader header : headers) {
-			this.headers.add(header);
+		this.headers = headers.clone();
+		this.headerCount = headers.length;
+		this.headerNames = new String[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			this.headerNames[i] = headers[i].getKey().toLowerCase(Locale.ROOT);
 		}
+		this.indexHeaders();
 		this.body = body;
 	}
 
+	/**
+	 * Create an empty request to be initialized by a {@link StupidHttpParser}.
+	 * 
+	 * @param localAddress Local address that received the request
+	 * @param remoteAddress Remote address that sent the request
+	 */
+	StupidHttpRequest(String localAddress, String remoteAddress) {
+		this.localAddress = localAddress;
+		this.remoteAddress = remoteAddress;
+	}
+
+	/**
+	 * Initialize the request line and headers.
+	 * 
+	 * @param method Request method
+	 * @param path Request path
+	 * @param version Protocol version
+	 * @param headerBlock The raw header lines
+	 * @param headerOffsets Start and end of the name and value of each header in headerBlock
+	 * @param headerCount The number of headers
+	 */
+	void init(String method, String path, String version, byte[] headerBlock, int[] headerOffsets, int headerCount) {
+		this.method = method;
+		this.path = path;
+		this.version = version;
+		this.headerBlock = headerBlock;
+		this.headerOffsets = headerOffsets;
+		this.headerCount = headerCount;
+		this.headers = new StupidHttpHeader[headerCount];
+		this.headerNames = new String[headerCount];
+		for (int i = 0; i < headerCount; i++) {
+			this.headerNames[i] = StupidHttpHeader.lowerCaseName(headerBlock, headerOffsets[4 * i], headerOffsets[4 * i + 1]);
+		}
+		this.indexHeaders();
+	}
+
+	private void indexHeaders() {
+		int size = Integer.highestOneBit(Math.max(1, this.headerCount) * 2 + 1);
+		this.headerIndex = new int[size];
+		this.headerNext = new int[this.headerCount];
+		for (int i = this.headerCount - 1; i >= 0; i--) {
+			String name = this.headerNames[i];
+			int slot = this.findHeader(name, name.hashCode());
+			this.headerNext[i] = this.headerIndex[slot] - 1;
+			this.headerIndex[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * @return The slot of the header with that name in the hash table, or the empty slot where it would be
+	 */
+	private int findHeader(String name, int hash) {
+		int mask = this.headerIndex.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int i = this.headerIndex[slot] - 1;
+			if (i < 0 || this.headerNames[i].equalsIgnoreCase(name)) {
+				return slot;
+			}
+		}
+	}
+
 	/**
 	 * @return The local address that received the request
 	 */
@@ -119,6 +208,28 @@ public class StupidHttpRequest {
 		return this.method;
 	}
 
+	/**
+	 * @return The protocol version of the request, such as "HTTP/1.1"
+	 */
+	public String getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Check whether the client wants to keep the connection open after this request.
+	 * HTTP/1.1 connections are persistent unless the Connection header contains "close".
+	 * HTTP/1.0 connections are closed unless the Connection header contains "keep-alive".
+	 * 
+	 * @return Whether the connection should be kept alive
+	 */
+	public boolean isKeepAlive() {
+		String conn = this.getHeader("connection");
+		if ("HTTP/1.0".equals(this.version) || "HTTP/0.9".equals(this.version)) {
+			return conn != null && this.hasToken(conn, "keep-alive");
+		}
+		return conn == null || !this.hasToken(conn, "close");
+	}
+
 	/**
 	 * @return The raw request path, including the query string
 	 */
@@ -137,6 +248,37 @@ public class StupidHttpRequest {
 		return this.path;
 	}
 
+	/**
+	 * Get a parameter of the path pattern the request was dispatched on by {@link StupidHttpMuxer},
+	 * such as "id" for the pattern "/users/{id}".
+	 * 
+	 * @param name The name of the parameter
+	 * @return The percent-decoded part of the path the parameter matched; null if the pattern has no such parameter
+	 */
+	public String getPathParameter(String name) {
+		if (this.pathParameterNames == null) {
+			return null;
+		}
+		for (int i = 0; i < this.pathParameterNames.length; i++) {
+			if (this.pathParameterNames[i].equals(name)) {
+				String value = StupidHttpDirectoryHandler.percentDecode(this.pathParameters[i]);
+				return value == null ? this.pathParameters[i] : value; // invalid escapes are kept as they are
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the path parameters; done by {@link StupidHttpMuxer} when it dispatches the request.
+	 * 
+	 * @param names The names of the parameters
+	 * @param values The parts of the path they matched, still percent-encoded
+	 */
+	void setPathParameters(String[] names, String[] values) {
+		this.pathParameterNames = names;
+		this.pathParameters = values;
+	}
+
 	/**
 	 * @return The query string if any, otherwise null
 	 */
@@ -160,26 +302,60 @@ public class StupidHttpRequest {
 
 	/**
 	 * Get a header's value.
+	 * The header name is case-insensitive.
 	 * If there are multiple headers with the same key, the first one's value is returned.
 	 * 
 	 * @param key The header
 	 * @return The value, if the header was specified; null otherwise
 	 */
 	public String getHeader(String key) {
-		key = new StupidHttpHeader(key, null).getNormalizedKey();
-		for (StupidHttpHeader h : this.headers) {
-			if (h.getNormalizedKey().equals(key)) {
-				return h.getValue();
-			}
+		key = key.trim();
+		int i = this.headerIndex[this.findHeader(key, StupidHttpHeader.lowerCaseHash(key))] - 1;
+		return i < 0 ? null : this.header(i).getValue();
+	}
+
+	/**
+	 * Get all headers with the specified name.
+	 * The header name is case-insensitive.
+	 * 
+	 * @param key The header name
+	 * @return Array of headers with that name, in the order they were sent
+	 */
+	public StupidHttpHeader[] getHeaders(String key) {
+		key = key.trim();
+		int first = this.headerIndex[this.findHeader(key, StupidHttpHeader.lowerCaseHash(key))] - 1;
+		int n = 0;
+		for (int i = first; i >= 0; i = this.headerNext[i]) {
+			n++;
 		}
-		return null;
+		StupidHttpHeader[] headers = new StupidHttpHeader[n];
+		n = 0;
+		for (int i = first; i >= 0; i = this.headerNext[i]) {
+			headers[n++] = this.header(i);
+		}
+		return headers;
 	}
 
 	/**
 	 * @return Array of all headers on this request
 	 */
 	public StupidHttpHeader[] getHeaders() {
-		return this.headers.toArray(new StupidHttpHeader[this.headers.size()]);
+		StupidHttpHeader[] headers = new StupidHttpHeader[this.headerCount];
+		for (int i = 0; i < this.headerCount; i++) {
+			headers[i] = this.header(i);
+		}
+		return headers;
+	}
+
+	private StupidHttpHeader header(int i) {
+		StupidHttpHeader h = this.headers[i];
+		if (h == null) {
+			int[] o = this.headerOffsets;
+			String key = new String(this.headerBlock, o[4 * i], o[4 * i + 1] - o[4 * i], StandardCharsets.UTF_8);
+			String value = new String(this.headerBlock, o[4 * i + 2], o[4 * i + 3] - o[4 * i + 2], StandardCharsets.UTF_8);
+			h = this.headers[i] = new StupidHttpHeader(key, value);
+		}
+		return h;
 	}
 
 	/**
@@ -189,7 +365,7 @@ public class StupidHttpRequest {
 	 * @return The cookie value
 	 */
 	public String getCookie(String key) {
-		for (StupidHttpCookie c : this.cookies) {
+		for (StupidHttpCookie c : this.cookies()) {
 			if (c.getKey().equals(key)) {
 				return c.getValue();
 			}
@@ -201,28 +377,187 @@ public class StupidHttpRequest {
 	 * @return Array of all cookies in this request
 	 */
 	public StupidHttpCookie[] getCookies() {
-		return this.cookies.toArray(new StupidHttpCookie[this.cookies.size()]);
+		List<StupidHttpCookie> cookies = this.cookies();
+		return cookies.toArray(new StupidHttpCookie[cookies.size()]);
+	}
+
+	private List<StupidHttpCookie> cookies() {
+		if (this.cookies == null) {
+			List<StupidHttpCookie> cookies = new ArrayList<StupidHttpCookie>();
+			for (StupidHttpHeader h : this.getHeaders("cookie")) {
+				try {
+					for (String cookie : h.getValue().split(";\\s*")) {
+						cookies.add(new StupidHttpCookie(cookie));
+					}
+				} catch (StupidHttpException e) {
+					// invalid cookie, ignore
+				}
+			}
+			this.cookies = cookies;
+		}
+		return this.cookies;
+	}
+
+	/**
+	 * @return The maximum body length handlers may read
+	 */
+	public long getMaxBodyLength() {
+		return this.maxBodyLength;
+	}
+
+	/**
+	 * Sets the maximum body length handlers may read.
+	 * The server sets its default before dispatching, and {@link StupidHttpMuxer} may override it per route.
+	 * 
+	 * @param maxBodyLength The maximum length in bytes
+	 */
+	public void setMaxBodyLength(long maxBodyLength) {
+		this.maxBodyLength = maxBodyLength;
+	}
+
+	/**
+	 * Get a stream of the request body data.
+	 * The body is read lazily from the connection as the stream is consumed, so large uploads don't have to fit in memory.
+	 * Chunked bodies ("Transfer-Encoding: chunked") are decoded as their chunks arrive.
+	 * The stream ends with the body; closing it doesn't close the connection.
+	 * After the stream has been used, {@link #getBody()} only returns the part of the body that wasn't read from it.
+	 * 
+	 * @return The body stream; null, if the request is not a POST request and has no body
+	 * @throws IOException The body is longer than {@link #getMaxBodyLength()}; its cause is a {@link StupidHttpException} of type {@link StupidHttpException#BODY_TOO_LONG}.
+	 * Reading a chunked body throws the same exception once it grows too long, or one caused by {@link StupidHttpException#INVALID_REQUEST} if its chunks are malformed.
+	 */
+	public InputStream getBodyStream() throws IOException {
+		if (this.body != null) {
+			this.checkBodyLength(this.body.length);
+			return new ByteArrayInputStream(this.body);
+		}
+		if (this.bodySource == null) {
+			return null;
+		}
+		if (this.bodyLength >= 0) {
+			this.checkBodyLength(this.bodyLength);
+		}
+		return this.openBody();
+	}
+
+	private InputStream openBody() {
+		if (this.bodyStream == null) {
+			// created on first use, so the decoder gets the limit set for the handler
+			this.bodyStream = this.bodyLength < 0 ? new StupidHttpChunkedInputStream(this.bodySource, this.maxBodyLength) : new BodyInputStream(this.bodySource, this.bodyLength);
+		}
+		return this.bodyStream;
 	}
 
 	/**
-	 * @return A copy of the request body data; null, if not a POST request
+	 * @return A channel reading the request body data lazily, like {@link #getBodyStream()}; null, if the request is not a POST request and has no body
+	 * @throws IOException The body is longer than {@link #getMaxBodyLength()}
+	 */
+	public ReadableByteChannel getBodyChannel() throws IOException {
+		InputStream in = this.getBodyStream();
+		return in == null ? null : Channels.newChannel(in);
+	}
+
+	/**
+	 * Get the request body data.
+	 * On the first call, a streamed body is read completely into memory.
+	 * 
+	 * @return A copy of the request body data; null, if the request is not a POST request and has no body
+	 * @throws UncheckedIOException The body couldn't be read or is longer than {@link #getMaxBodyLength()}
 	 */
 	public byte[] getBody() {
-		return this.body == null ? null : this.body.clone();
+		byte[] body = this.bufferBody();
+		return body == null ? null : body.clone();
+	}
+
+	/**
+	 * Get a read-only view of the request body data without copying it, like {@link #getBody()}.
+	 * It can be passed to {@link StupidHttpResponse#setBody(ByteBuffer)} to echo or forward the body.
+	 * 
+	 * @return The body data; null, if the request is not a POST request and has no body
+	 * @throws UncheckedIOException The body couldn't be read or is longer than {@link #getMaxBodyLength()}
+	 */
+	public ByteBuffer getBodyBuffer() {
+		byte[] body = this.bufferBody();
+		return body == null ? null : ByteBuffer.wrap(body).asReadOnlyBuffer();
 	}
 
 	/**
 	 * @return UTF-8 decoded request body data
+	 * @throws UncheckedIOException The body couldn't be read or is longer than {@link #getMaxBodyLength()}
 	 */
 	public String getBodyString() {
-		if (this.body != null) {
+		byte[] body = this.bufferBody();
+		if (body != null) {
 			try {
-				return new String(this.body, "UTF-8");
+				return new String(body, "UTF-8");
 			} catch (UnsupportedEncodingException e) {}
 		}
 		return null;
 	}
 
+	private byte[] bufferBody() {
+		if (this.body == null && this.bodySource != null) {
+			try {
+				InputStream in = this.getBodyStream();
+				if (in instanceof BodyInputStream) {
+					long remaining = ((BodyInputStream) in).remaining;
+					if (remaining > Integer.MAX_VALUE - 8) {
+						throw new IOException("body too long to buffer: " + this.bodyLength + " bytes");
+					}
+					this.body = new byte[(int) remaining];
+					int off = 0;
+					while (off < this.body.length) {
+						off += in.read(this.body, off, this.body.length - off);
+					}
+				} else {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buf = new byte[1024 * 8];
+					int n;
+					while ((n = in.read(buf)) >= 0) {
+						out.write(buf, 0, n);
+					}
+					this.body = out.toByteArray();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return this.body;
+	}
+
+	private void checkBodyLength(long length) throws IOException {
+		if (length > this.maxBodyLength) {
+			StupidHttpException e = new StupidHttpException(StupidHttpException.BODY_TOO_LONG, "body too long: " + length + " bytes");
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Skip the part of the body handlers didn't read, so the next request on the connection can be parsed.
+	 * 
+	 * @return Whether the body was consumed; false if too much was left to skip or the connection failed
+	 */
+	boolean discardBody() {
+		if (this.bodySource == null) {
+			return true;
+		}
+		InputStream in = this.openBody();
+		if (in instanceof BodyInputStream && ((BodyInputStream) in).remaining > MAX_DISCARD_LENGTH) {
+			return false;
+		}
+		try {
+			byte[] buf = new byte[1024 * 8];
+			for (int skipped = 0; skipped <= MAX_DISCARD_LENGTH;) {
+				int n = in.read(buf);
+				if (n < 0) {
+					return true;
+				}
+				skipped += n;
+			}
+		} catch (IOException e) {}
+		return false;
+	}
+
 	/**
 	 * @return The form parsed from the URL query string
 	 */
@@ -240,126 +575,156 @@ public class StupidHttpRequest {
 	}
 
 	private void read(InputStream in) throws IOException, StupidHttpException {
-		BufferedInputStream bin = new BufferedInputStream(in);
-		String method = this.readLine(bin);
-		if (method == null) {
-			throw new StupidHttpException(StupidHttpException.UNEXPECTED_END, "no method header");
-		}
-		this.parseMethod(method);
-		String header;
-		while ((header = this.readLine(bin)) != null && !"".equals(header)) {
-			this.parseHeader(header);
-		}
-		if (header == null) {
-			throw new StupidHttpException(StupidHttpException.UNEXPECTED_END, "unexpected end of headers");
-		}
-		if (this.isPost()) {
-			String len = this.getHeader("content-length");
-			if (len == null) {
-				throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "missing content-length");
-			}
-			int length;
-			try {
-				length = Integer.parseInt(len);
-			} catch (NumberFormatException e) {
-				throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "content-length is not a number");
-			}
-			this.readBody(bin, length);
+		// reuse the caller's parser, so bytes of pipelined requests on a persistent connection aren't lost
+		StupidHttpParser parser = in instanceof StupidHttpParser ? (StupidHttpParser) in : new StupidHttpParser(in);
+		parser.readHead(this);
+		this.bodyLength = this.getBodyLength();
+		// any method may send a body, and it has to be consumed before the next request on the connection is read
+		if (this.isPost() || this.bodyLength != 0) {
+			this.bodySource = parser;
 		}
 	}
 
-	private String readLine(InputStream in) throws IOException {
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		int c;
-		while ((c = in.read()) >= 0) {
-			if (c == '\n') {
-				break;
+	/**
+	 * The body is framed the same way for every method (RFC 9110 section 6.4.1), so a GET or HEAD with a body
+	 * is read and discarded like any other rather than being parsed as the next request.
+	 * 
+	 * @return The length of the body according to the request headers; 0 if the request has no body, -1 if it is chunked
+	 * @throws StupidHttpException The Transfer-Encoding or Content-Length header is invalid or repeated with different values, or a POST request has neither
+	 */
+	long getBodyLength() throws StupidHttpException {
+		StupidHttpHeader[] encodings = this.getHeaders("transfer-encoding");
+		if (encodings.length > 0) {
+			// other codings aren't supported, and a list or repeated field would only be guessed at
+			if (encodings.length > 1 || !encodings[0].getValue().trim().equalsIgnoreCase("chunked")) {
+				throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "unsupported transfer-encoding: " + encodings[0].getValue());
 			}
-			if (c == '\r') {
-				in.mark(1);
-				int n = in.read();
-				if (n == '\n' || n < 0) {
-					break;
-				}
-				in.reset();
+			// a proxy in front of the server may frame the message by Content-Length instead, and the rest of the body would be read as another request (RFC 9112 section 6.1)
+			if (this.getHeaders("content-length").length > 0) {
+				throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "both transfer-encoding and content-length");
 			}
-			buf.write(c);
+			return -1;
 		}
-		String s = buf.toString("UTF-8");
-		if (c < 0 && s.length() == 0) {
-			return null;
+		StupidHttpHeader[] lengths = this.getHeaders("content-length");
+		if (lengths.length == 0 && !this.isPost()) {
+			return 0;
 		}
-		return s;
-	}
-
-	private void parseMethod(String method) throws StupidHttpException {
-		String[] fields = method.split("\\s+");
-		if (fields.length != 3) {
-			throw new StupidHttpException(StupidHttpException.INVALID_METHOD, method);
+		if (lengths.length == 0) {
+			throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "missing content-length");
 		}
-
-		if ("POST".equalsIgnoreCase(fields[0])) {
-			this.method = "POST";
-		} else if ("GET".equalsIgnoreCase(fields[0])) {
-			this.method = "GET";
-		} else if ("HEAD".equalsIgnoreCase(fields[0])) {
-			this.method = "HEAD";
-		} else {
-			throw new StupidHttpException(StupidHttpException.INVALID_METHOD, fields[0]);
+		// every field must give the same plain number, otherwise the body could end somewhere else than the client or a proxy thinks
+		String len = lengths[0].getValue().trim();
+		for (StupidHttpHeader h : lengths) {
+			if (!h.getValue().trim().equals(len)) {
+				throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "conflicting content-length");
+			}
 		}
-
-		this.path = fields[1];
-
-		if (!fields[2].toUpperCase().matches("^HTTP/[0-9.]+$")) {
-			throw new StupidHttpException(StupidHttpException.INVALID_METHOD, fields[2]);
+		if (len.isEmpty()) {
+			throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "content-length is not a number");
 		}
-	}
-
-	private void parseHeader(String header) throws StupidHttpException {
-		String[] fields = header.split(": +", 2);
-		if (fields.length != 2) {
-			throw new StupidHttpException(StupidHttpException.INVALID_HEADER, header);
+		for (int i = 0; i < len.length(); i++) {
+			if (len.charAt(i) < '0' || len.charAt(i) > '9') {
+				throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "content-length is not a number");
+			}
 		}
-		String key = fields[0].trim();
-		String value = fields[1].trim();
-		if (key.isEmpty() || value.isEmpty()) {
-			throw new StupidHttpException(StupidHttpException.INVALID_HEADER, header);
+		try {
+			return Long.parseLong(len);
+		} catch (NumberFormatException e) {
+			throw new StupidHttpException(StupidHttpException.INVALID_REQUEST, "content-length is too large");
 		}
-		StupidHttpHeader h = new StupidHttpHeader(key, value);
-		this.headers.add(h);
-		if (h.getNormalizedKey().equalsIgnoreCase("cookie")) {
-			try {
-				String[] cookies = h.getValue().split(";\\s*");
-				for (String cookie : cookies) {
-					this.cookies.add(new StupidHttpCookie(cookie));
-				}
-			} catch (StupidHttpException e) {
-				// invalid cookie, ignore
+	}
+
+	private boolean hasToken(String value, String token) {
+		for (String t : value.split(",")) {
+			if (t.trim().equalsIgnoreCase(token)) {
+				return true;
 			}
 		}
+		return false;
 	}
 
-	private void readBody(InputStream in, int length) throws StupidHttpException, IOException {
-		if (length > MAX_BODY_LENGTH) {
-			throw new StupidHttpException(StupidHttpException.BODY_TOO_LONG, "body too long: " + length + " bytes");
+	/**
+	 * Set the body data that was already read and decoded.
+	 * 
+	 * @param body The body data
+	 */
+	void setBufferedBody(byte[] body) {
+		this.body = body;
+	}
+
+	/**
+	 * Read the whole body data into memory.
+	 * 
+	 * @param in The stream positioned after the request head
+	 * @param length The length of the body
+	 * @throws IOException Exception while reading
+	 */
+	void readBody(InputStream in, int length) throws IOException {
+		if (!this.isPost() && length == 0) {
+			return;
 		}
 
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		byte[] buf = new byte[1024 * 4];
-		int n = 0;
-		for (;;) {
-			int num = Math.min(buf.length, length);
-			n = in.read(buf, 0, num);
+		byte[] body = new byte[length];
+		int off = 0;
+		while (off < length) {
+			int n = in.read(body, off, length - off);
 			if (n < 0) {
+				body = Arrays.copyOf(body, off);
 				break;
 			}
-			body.write(buf, 0, n);
-			length -= n;
-			if (length <= 0) {
-				break;
+			off += n;
+		}
+		this.body = body;
+	}
+
+	/**
+	 * A stream of the body data that ends after the length given by the request headers.
+	 */
+	private static class BodyInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		BodyInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this.remaining == 0) {
+				return -1;
+			}
+			int c = this.in.read();
+			if (c < 0) {
+				throw new IOException("unexpected end of body");
+			}
+			this.remaining--;
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.remaining == 0) {
+				return -1;
 			}
+			int n = this.in.read(b, off, (int) Math.min(len, this.remaining));
+			if (n < 0) {
+				throw new IOException("unexpected end of body");
+			}
+			this.remaining -= n;
+			return n;
 		}
 
-		this.body = body.toByteArray();
+		@Override
+		public long skip(long n) throws IOException {
+			n = this.in.skip(Math.min(n, this.remaining));
+			this.remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(this.in.available(), this.remaining);
+		}
 	}
 }
@@ -7,15 +7,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.TimeZone;
 
 /**
  * StupidHttpResponse represents a HTTP response.
@@ -24,13 +22,13 @@ import java.util.TimeZone;
  * @version 1.0
  */
 public class StupidHttpResponse {
-	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
-	static {
-		DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-	}
+	private static final byte[] CRLF = { '\r', '\n' };
 	private List<StupidHttpHeader> headers = new ArrayList<StupidHttpHeader>();
 	private int code = StupidHttpStatus.OK;
-	private byte[] body = null;
+	private String version = "HTTP/1.0";
+	private StupidHttpBody body = null;
+	private final StupidHttpStaticResponse prerendered;
+	private boolean keepAlive = true;
 
 	/**
 	 * Create a HTTP response.
@@ -39,10 +37,21 @@ public class StupidHttpResponse {
 	 */
 	public StupidHttpResponse() {
 		this.headers.add(new StupidHttpHeader("content-type", "text/plain; charset=utf-8"));
-		this.headers.add(new StupidHttpHeader("date", DATE_FORMAT.format(new Date())));
+		this.headers.add(StupidHttpDate.header());
 		this.headers.add(new StupidHttpHeader("server", this.getClass().getPackage().getName()));
+		this.prerendered = null;
 	};
 
+	/**
+	 * Create a response that sends a pre-rendered response, without any headers of its own.
+	 * 
+	 * @param prerendered The pre-rendered response
+	 */
+	StupidHttpResponse(StupidHttpStaticResponse prerendered) {
+		this.prerendered = prerendered;
+		this.code = prerendered.getCode();
+	}
+
 	/**
 	 * Add a header to the response.
 	 * The header will be appended even if headers with the same name already exist.
@@ -181,22 +190,65 @@ public class StupidHttpResponse {
 		this.code = code;
 	}
 
+	/**
+	 * @return The protocol version used in the status line; "HTTP/1.0" by default
+	 */
+	public String getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Set the protocol version used in the status line.
+	 * The server sets this to match the version of the request.
+	 * 
+	 * @param version The protocol version, such as "HTTP/1.1"
+	 */
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return The pre-rendered response this response sends; null if it is an ordinary response
+	 */
+	StupidHttpStaticResponse getPrerendered() {
+		return this.prerendered;
+	}
+
+	/**
+	 * Set whether a pre-rendered response is sent for a connection that is kept alive, which selects its Connection header.
+	 * 
+	 * @param keepAlive Whether the connection is kept alive
+	 */
+	void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
 	/**
 	 * Construct a HTTP status line.
-	 * Looks like "HTTP/1.0 200 OK", if the code is {@link StupidHttpStatus#OK}.
+	 * Looks like "HTTP/1.1 200 OK", if the code is {@link StupidHttpStatus#OK} and the version is "HTTP/1.1".
 	 * "\r\n" is not included.
 	 * 
 	 * @return The HTTP status line
 	 */
 	public String getStatus() {
-		return String.format("HTTP/1.0 %d %s", this.code, StupidHttpStatus.statusText(this.code));
+		return String.format("%s %d %s", this.version, this.code, StupidHttpStatus.statusText(this.code));
 	}
 
 	/**
-	 * @return A copy of the request body data
+	 * @return Whether the response has body data
+	 */
+	public boolean hasBody() {
+		return this.body != null;
+	}
+
+	/**
+	 * @return A copy of the request body data; null, if the body is written by a {@link StupidHttpBodyWriter}, read from a file or made of buffers
 	 */
 	public byte[] getBody() {
-		return this.body.clone();
+		if (!(this.body instanceof StupidHttpBody.Bytes)) {
+			return null;
+		}
+		return ((StupidHttpBody.Bytes) this.body).toByteArray();
 	}
 
 	/**
@@ -206,8 +258,80 @@ public class StupidHttpResponse {
 	 * @param body The body data
 	 */
 	public void setBody(byte[] body) {
-		this.body = body.clone();
-		this.setHeader(new StupidHttpHeader("content-length", Integer.toString(this.body.length)));
+		this.body = new StupidHttpBody.Bytes(body.clone());
+		this.setHeader(new StupidHttpHeader("content-length", Integer.toString(body.length)));
+	}
+
+	/**
+	 * Sets the body data to an array without copying it.
+	 * Also sets the Content-Length header.
+	 * The response takes ownership of the array: it must not be modified afterwards, as it may be written at any time until the response is sent.
+	 * 
+	 * @param body The body data
+	 */
+	public void setBodyNoCopy(byte[] body) {
+		this.setBodyNoCopy(body, 0, body.length);
+	}
+
+	/**
+	 * Sets the body data to a part of an array without copying it, like {@link #setBodyNoCopy(byte[])}.
+	 * 
+	 * @param body The array
+	 * @param offset The offset of the body data in the array
+	 * @param length The length of the body data
+	 */
+	public void setBodyNoCopy(byte[] body, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > body.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.setBody(new StupidHttpBody.Bytes(body, offset, length));
+	}
+
+	/**
+	 * Sets the body data to the remaining content of a buffer without copying it.
+	 * Also sets the Content-Length header.
+	 * The buffer's position and limit are left alone, but its content must not change until the response is sent.
+	 * Direct and memory-mapped buffers are sent to the socket from outside the heap.
+	 * 
+	 * @param body The buffer
+	 */
+	public void setBody(ByteBuffer body) {
+		this.setBody(new StupidHttpBody.Buffer(body.slice()));
+	}
+
+	/**
+	 * Sets the body data to the remaining content of several buffers, sent one after another without copying them, like {@link #setBody(ByteBuffer)}.
+	 * This way a body assembled from several pieces, such as a prefix, a shared payload and a suffix, doesn't have to be joined first.
+	 * 
+	 * @param segments The buffers
+	 */
+	public void setBody(ByteBuffer... segments) {
+		StupidHttpBody[] parts = new StupidHttpBody[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			parts[i] = new StupidHttpBody.Buffer(segments[i].slice());
+		}
+		this.setBody(new StupidHttpBody.Composite(parts));
+	}
+
+	/**
+	 * Get read-only views of the body data without copying it.
+	 * 
+	 * @return The segments of the body; null, if the body is written by a {@link StupidHttpBodyWriter} or read from a file
+	 */
+	public ByteBuffer[] getBodyBuffers() {
+		if (this.body instanceof StupidHttpBody.Composite) {
+			StupidHttpBody[] parts = ((StupidHttpBody.Composite) this.body).parts;
+			ByteBuffer[] buffers = new ByteBuffer[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				buffers[i] = parts[i].view();
+				if (buffers[i] == null) {
+					return null;
+				}
+			}
+			return buffers;
+		}
+		ByteBuffer view = this.body == null ? null : this.body.view();
+		return view == null ? null : new ByteBuffer[] { view };
 	}
 
 	/**
@@ -217,10 +341,67 @@ public class StupidHttpResponse {
 	 * @param body The body data
 	 */
 	public void setBody(String body) {
-		try {
-			this.body = body.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {}
-		this.setHeader(new StupidHttpHeader("content-length", Integer.toString(this.body.length)));
+		byte[] data = body.getBytes(StandardCharsets.UTF_8);
+		this.body = new StupidHttpBody.Bytes(data);
+		this.setHeader(new StupidHttpHeader("content-length", Integer.toString(data.length)));
+	}
+
+	/**
+	 * Sets a body that is written while the response is sent, so it doesn't have to fit in memory.
+	 * Removes the Content-Length header: the server sends the body with "Transfer-Encoding: chunked" to HTTP/1.1 clients
+	 * and closes the connection after it for HTTP/1.0 clients.
+	 * The writer isn't called for HEAD requests.
+	 * 
+	 * @param writer The writer producing the body data
+	 */
+	public void setBody(StupidHttpBodyWriter writer) {
+		this.body = new StupidHttpBody.Streamed(writer, -1);
+		this.removeHeaders("content-length");
+	}
+
+	/**
+	 * Sets a body of a known length that is written while the response is sent.
+	 * Also sets the Content-Length header; the writer must write exactly that many bytes, otherwise the response is cut off and the connection closed.
+	 * 
+	 * @param writer The writer producing the body data
+	 * @param length The length of the body data in bytes
+	 */
+	public void setBody(StupidHttpBodyWriter writer, long length) {
+		this.body = new StupidHttpBody.Streamed(writer, length);
+		this.setHeader(new StupidHttpHeader("content-length", Long.toString(length)));
+	}
+
+	/**
+	 * @return The body; null if there is none
+	 */
+	StupidHttpBody getBodyData() {
+		return this.body;
+	}
+
+	/**
+	 * Set the body and, if its length is known, the Content-Length header.
+	 * 
+	 * @param body The body
+	 */
+	void setBody(StupidHttpBody body) {
+		this.body = body;
+		if (body.length() >= 0) {
+			this.setHeader(new StupidHttpHeader("content-length", Long.toString(body.length())));
+		} else {
+			this.removeHeaders("content-length");
+		}
+	}
+
+	/**
+	 * @return Whether the body is sent with "Transfer-Encoding: chunked"
+	 */
+	boolean isChunked() {
+		for (StupidHttpHeader h : this.headers) {
+			if (h.getNormalizedKey().equals("Transfer-Encoding") && h.getValue().trim().equalsIgnoreCase("chunked")) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -237,11 +418,10 @@ public class StupidHttpResponse {
 			buf.write(h.toString());
 			buf.write("\r\n");
 		}
-		if (this.body != null) {
-			try {
-				buf.write("\r\n");
-				buf.write(new String(this.body, "UTF-8"));
-			} catch (UnsupportedEncodingException e) {}
+		if (this.body instanceof StupidHttpBody.Bytes) {
+			buf.write("\r\n");
+			StupidHttpBody.Bytes bytes = (StupidHttpBody.Bytes) this.body;
+			buf.write(new String(bytes.data, bytes.offset, bytes.length, StandardCharsets.UTF_8));
 		}
 		return buf.toString();
 	}
@@ -264,21 +444,44 @@ public class StupidHttpResponse {
 	 * @throws IOException IO error during writing
 	 */
 	public void writeTo(OutputStream out, boolean writeBody) throws IOException {
-		BufferedOutputStream bos = new BufferedOutputStream(out);
-		byte[] rn = "\r\n".getBytes("UTF-8");
-		try {
-			bos.write(this.getStatus().getBytes("UTF-8"));
-			bos.write(rn);
-			for (StupidHttpHeader h : this.headers) {
-				bos.write(h.toString().getBytes("UTF-8"));
-				bos.write(rn);
+		this.writeTo(new StupidHttpWriteBuffer(out, StupidHttpWriteBuffer.SIZE), null, writeBody);
+	}
+
+	/**
+	 * Writes the HTTP request to a connection's buffer, sending file bodies through a sink if one is given.
+	 * The status line and the headers are written from their pre-encoded bytes, so a small response is written with one call
+	 * and hardly any allocation.
+	 * 
+	 * @param out The buffer to write the request to; it is flushed at the end
+	 * @param sink Where file regions are sent without copying them; null to write them to out
+	 * @param writeBody Whether to write the body data too; should be false for HEAD requests
+	 * @throws IOException IO error during writing
+	 */
+	void writeTo(StupidHttpWriteBuffer out, StupidHttpBody.FileSink sink, boolean writeBody) throws IOException {
+		if (this.prerendered != null) {
+			this.prerendered.writeTo(out, "HTTP/1.0".equals(this.version), this.keepAlive, writeBody);
+			return;
+		}
+		out.write(StupidHttpStatus.statusLine(this.version, this.code));
+		for (int i = 0; i < this.headers.size(); i++) {
+			out.write(this.headers.get(i).encoded());
+		}
+		out.write(CRLF);
+		if (this.body != null && writeBody) {
+			if (this.body instanceof StupidHttpBody.Streamed) {
+				out.flush(); // send the head right away, the body may take a while
 			}
-			bos.write(rn);
-			if (this.body != null && writeBody) {
-				bos.write(this.body);
+			if (this.isChunked()) {
+				StupidHttpChunkedOutputStream chunked = new StupidHttpChunkedOutputStream(out);
+				BufferedOutputStream cbos = new BufferedOutputStream(chunked);
+				this.body.writeTo(cbos, null);
+				cbos.flush();
+				chunked.finish();
+			} else {
+				this.body.writeTo(out, sink);
 			}
-			bos.flush();
-		} catch (UnsupportedEncodingException e) {}
+		}
+		out.flush();
 	}
 
 	/**
@@ -384,14 +587,76 @@ public class StupidHttpResponse {
 		}
 	}
 
+	/**
+	 * Construct a response that serves a file, answering range requests with {@link StupidHttpStatus#PartialContent}.
+	 * It tries to guess the filetype from the filename.
+	 * 
+	 * The response carries Last-Modified and ETag headers, derived from the file's modification time and size.
+	 * If the request's If-None-Match or If-Modified-Since header shows that the client has the current version,
+	 * a {@link StupidHttpStatus#NotModified} response is returned instead, without opening the file.
+	 * 
+	 * Single ranges are sent as the requested part of the file, several ranges as multipart/byteranges;
+	 * only the requested bytes are read.
+	 * Ranges past the end of the file are answered with {@link StupidHttpStatus#RequestedRangeNotSatisfiable}.
+	 * 
+	 * @param req The request to answer
+	 * @param file The file to serve
+	 * @return The response
+	 */
+	public static StupidHttpResponse fileResponse(StupidHttpRequest req, File file) {
+		return StupidHttpFiles.fileResponse(req, file, null, false);
+	}
+
+	/**
+	 * Construct a response that serves a file, answering range requests for files on the filesystem like {@link #fileResponse(StupidHttpRequest, File)}.
+	 * It tries to guess the filetype from the filename.
+	 * 
+	 * @param req The request to answer
+	 * @param url The file to serve
+	 * @return The response
+	 */
+	public static StupidHttpResponse fileResponse(StupidHttpRequest req, URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return StupidHttpResponse.fileResponse(url);
+		}
+		try {
+			return StupidHttpFiles.fileResponse(req, new File(url.toURI()), null, false);
+		} catch (URISyntaxException e) {
+			return StupidHttpResponse.errorResponse(e);
+		} catch (IllegalArgumentException e) {
+			return StupidHttpResponse.errorResponse(e);
+		}
+	}
+
 	/**
 	 * Construct a simple response that serves a file.
 	 * It tries to guess the filetype from the filename.
 	 * 
+	 * Files on the filesystem ("file:" URLs) are not read into memory; the server sends them straight from the file to the socket.
+	 * Other URLs, such as resources in a jar, are read into memory.
+	 * 
 	 * @param url The file to serve
 	 * @return The response
 	 */
 	public static StupidHttpResponse fileResponse(URL url) {
+		if ("file".equals(url.getProtocol())) {
+			File file;
+			try {
+				file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				return StupidHttpResponse.errorResponse(e);
+			} catch (IllegalArgumentException e) {
+				return StupidHttpResponse.errorResponse(e);
+			}
+			if (!file.isFile()) {
+				return StupidHttpResponse.notFoundResponse(url.getPath());
+			}
+			StupidHttpResponse resp = new StupidHttpResponse();
+			resp.setBody(new StupidHttpBody.FileRegion(file, 0, file.length()));
+			resp.setHeader(new StupidHttpHeader("content-type", StupidHttpFiles.contentType(url.getPath())));
+			return resp;
+		}
+
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		InputStream in;
 		try {
@@ -418,7 +683,7 @@ public class StupidHttpResponse {
 
 		StupidHttpResponse resp = new StupidHttpResponse();
 		resp.setBody(out.toByteArray());
-		resp.setHeader(new StupidHttpHeader("content-type", URLConnection.guessContentTypeFromName(url.getPath())));
+		resp.setHeader(new StupidHttpHeader("content-type", StupidHttpFiles.contentType(url.getPath())));
 		return resp;
 	}
 }
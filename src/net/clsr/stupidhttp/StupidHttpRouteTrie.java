@@ -0,0 +1,234 @@
+package net.clsr.stupidhttp;
+
+import java.util.Arrays;
+
+/**
+ * StupidHttpRouteTrie is an immutable compressed prefix (radix) trie mapping path patterns to routes, used by {@link StupidHttpMuxer}.
+ * 
+ * Each node holds the part of a pattern that its edge adds to its parent's, so looking up a path compares each of its characters at most once,
+ * however many patterns there are.
+ * A pattern ending with "/" matches itself and every path it is a prefix of; any other pattern only matches itself,
+ * except the empty pattern, which matches "/".
+ * A segment of a pattern in braces, such as "{id}" in "/users/{id}/orders", is a parameter matching any non-empty path segment;
+ * the name in the braces is ignored here, and patterns differing only in the names are the same pattern.
+ * 
+ * A path matching a pattern completely wins over directory patterns, and otherwise the longest matching directory pattern wins.
+ * When a path could match more than one pattern completely, literal characters win over parameters:
+ * the parameter of a node is only tried after the literal edges below it have failed to match the rest of the path.
+ * 
+ * Nodes are never changed once built: {@link #put(String, Object)} copies the nodes on the way to the new pattern and shares the rest,
+ * so a trie can be read by any number of threads without locking while a new version is being built.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ * @param <V> The type of the routes
+ */
+final class StupidHttpRouteTrie<V> {
+	private static final char[] NO_KEYS = new char[0];
+	@SuppressWarnings("rawtypes")
+	private static final StupidHttpRouteTrie[] NO_CHILDREN = new StupidHttpRouteTrie[0];
+
+	private final String label; // the characters the edge from the parent adds
+	private final boolean prefix; // whether the pattern ends with "/" and matches the paths below it too
+	private final V value;
+	private final char[] keys; // the first characters of the children's labels, sorted
+	private final StupidHttpRouteTrie<V>[] children;
+	private final StupidHttpRouteTrie<V> param; // the node after a parameter segment; null if no pattern has one here
+
+	@SuppressWarnings("unchecked")
+	StupidHttpRouteTrie() {
+		this("", null, NO_KEYS, NO_CHILDREN, null);
+	}
+
+	private StupidHttpRouteTrie(String label, V value, char[] keys, StupidHttpRouteTrie<V>[] children, StupidHttpRouteTrie<V> param) {
+		this.label = label;
+		this.prefix = label.length() > 0 && label.charAt(label.length() - 1) == '/';
+		this.value = value;
+		this.keys = keys;
+		this.children = children;
+		this.param = param;
+	}
+
+	/**
+	 * Add a route, replacing the one with the same pattern.
+	 * 
+	 * @param pattern The pattern
+	 * @param value The route
+	 * @return A new trie with the route; this one is left unchanged
+	 */
+	StupidHttpRouteTrie<V> put(String pattern, V value) {
+		return this.put(pattern, 0, value);
+	}
+
+	/**
+	 * @param pattern The pattern
+	 * @param i The length of the pattern that leads to this node
+	 * @param value The route
+	 * @return A copy of this node with the route added below it
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private StupidHttpRouteTrie<V> put(String pattern, int i, V value) {
+		if (i == pattern.length()) {
+			return new StupidHttpRouteTrie<V>(this.label, value, this.keys, this.children, this.param);
+		}
+		if (pattern.charAt(i) == '{') {
+			StupidHttpRouteTrie<V> param = this.param == null ? new StupidHttpRouteTrie<V>() : this.param;
+			param = param.put(pattern, pattern.indexOf('}', i) + 1, value);
+			return new StupidHttpRouteTrie<V>(this.label, this.value, this.keys, this.children, param);
+		}
+		int idx = Arrays.binarySearch(this.keys, pattern.charAt(i));
+		if (idx < 0) {
+			int end = pattern.indexOf('{', i); // edges never contain parameters
+			StupidHttpRouteTrie<V> leaf = new StupidHttpRouteTrie<V>(pattern.substring(i, end < 0 ? pattern.length() : end), null, NO_KEYS, NO_CHILDREN, null);
+			return this.withChild(-idx - 1, leaf.put(pattern, end < 0 ? pattern.length() : end, value), true);
+		}
+
+		StupidHttpRouteTrie<V> child = this.children[idx];
+		int common = 1;
+		while (common < child.label.length() && i + common < pattern.length() && child.label.charAt(common) == pattern.charAt(i + common)) {
+			common++;
+		}
+		if (common < child.label.length()) {
+			// split the edge where the pattern leaves it
+			String rest = child.label.substring(common);
+			StupidHttpRouteTrie<V> tail = new StupidHttpRouteTrie<V>(rest, child.value, child.keys, child.children, child.param);
+			child = new StupidHttpRouteTrie<V>(child.label.substring(0, common), null, new char[] { rest.charAt(0) }, new StupidHttpRouteTrie[] { tail }, null);
+		}
+		return this.withChild(idx, child.put(pattern, i + common, value), false);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private StupidHttpRouteTrie<V> withChild(int idx, StupidHttpRouteTrie<V> child, boolean insert) {
+		int n = this.keys.length + (insert ? 1 : 0);
+		char[] keys = new char[n];
+		StupidHttpRouteTrie<V>[] children = new StupidHttpRouteTrie[n];
+		System.arraycopy(this.keys, 0, keys, 0, idx);
+		System.arraycopy(this.children, 0, children, 0, idx);
+		keys[idx] = child.label.charAt(0);
+		children[idx] = child;
+		int after = insert ? idx : idx + 1;
+		System.arraycopy(this.keys, after, keys, idx + 1, n - idx - 1);
+		System.arraycopy(this.children, after, children, idx + 1, n - idx - 1);
+		return new StupidHttpRouteTrie<V>(this.label, this.value, keys, children, this.param);
+	}
+
+	/**
+	 * Find the route for a path.
+	 * 
+	 * @param path The request path
+	 * @return The route with the pattern matching the path; null if none matches
+	 */
+	Match<V> get(String path) {
+		Match<V> match = new Match<V>();
+		if (!this.descend(path, 0, match, 0) && match.value == null) {
+			if (!path.equals("/") || this.value == null) {
+				return null;
+			}
+			match.found(this.value, path.length(), 0); // the empty pattern
+		}
+		return match;
+	}
+
+	/**
+	 * Match a path against this node, whose pattern matched its beginning.
+	 * 
+	 * @param path The request path
+	 * @param i The length of the path that leads to this node
+	 * @param match The match so far
+	 * @param count The number of parameters matched on the way
+	 * @return Whether a pattern matches the whole path
+	 */
+	private boolean visit(String path, int i, Match<V> match, int count) {
+		if (this.value != null) {
+			if (i == path.length()) {
+				match.found(this.value, i, count);
+				return true;
+			}
+			if (this.prefix && i > match.end) {
+				match.found(this.value, i, count); // may still be replaced by a complete match
+			}
+		}
+		return this.descend(path, i, match, count);
+	}
+
+	private boolean descend(String path, int i, Match<V> match, int count) {
+		if (i < path.length()) {
+			int idx = Arrays.binarySearch(this.keys, path.charAt(i));
+			if (idx >= 0) {
+				StupidHttpRouteTrie<V> child = this.children[idx];
+				if (path.startsWith(child.label, i) && child.visit(path, i + child.label.length(), match, count)) {
+					return true;
+				}
+			}
+		}
+		if (this.param != null) {
+			int end = path.indexOf('/', i);
+			end = end < 0 ? path.length() : end;
+			if (end > i) {
+				match.bind(count, i, end);
+				return this.param.visit(path, end, match, count + 1);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The route matching a path, and where its parameters are in the path.
+	 * 
+	 * @param <V> The type of the routes
+	 */
+	static final class Match<V> {
+		private V value = null;
+		private int end = -1;
+		private int[] bound = null; // start and end of each parameter while matching
+		private int[] bounds = null; // those of the route found
+		private int count = 0;
+
+		private void bind(int n, int start, int end) {
+			if (this.bound == null) {
+				this.bound = new int[8];
+			} else if (this.bound.length < 2 * n + 2) {
+				this.bound = Arrays.copyOf(this.bound, 2 * this.bound.length);
+			}
+			this.bound[2 * n] = start;
+			this.bound[2 * n + 1] = end;
+		}
+
+		private void found(V value, int end, int count) {
+			this.value = value;
+			this.end = end;
+			this.count = count;
+			this.bounds = count == 0 ? null : Arrays.copyOf(this.bound, 2 * count);
+		}
+
+		/**
+		 * @return The route
+		 */
+		V getValue() {
+			return this.value;
+		}
+
+		/**
+		 * @return The length of the path matched by the pattern; shorter than the path if it matched a directory pattern
+		 */
+		int getEnd() {
+			return this.end;
+		}
+
+		/**
+		 * @return The number of parameters in the pattern
+		 */
+		int getCount() {
+			return this.count;
+		}
+
+		/**
+		 * @param path The request path that was matched
+		 * @param n The index of the parameter in the pattern
+		 * @return The path segment matched by the parameter
+		 */
+		String getParameter(String path, int n) {
+			return path.substring(this.bounds[2 * n], this.bounds[2 * n + 1]);
+		}
+	}
+}
@@ -2,14 +2,33 @@ package net.clsr.stupidhttp;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,17 +36,47 @@ import java.util.logging.Logger;
  * StupidHttpServer is the core class of a HTTP server.
  * This class provides socket listeners, dispatches handlers, handles threading and logs access.
  * 
+ * Two engines are available. {@link #ENGINE_BLOCKING} (the default) serves every connection on its own executor thread.
+ * {@link #ENGINE_NIO} multiplexes all connections over a few selector threads and only hands complete requests to the executor,
+ * so idle and slow clients don't tie up threads.
+ * 
  * @author Marko Ceferin <marko@cefer.in>
  * @version 1.0
  */
 public class StupidHttpServer {
+	/** Thread-per-connection engine using blocking sockets */
+	public static final int ENGINE_BLOCKING = 0;
+	/** Selector-based event loop engine using non-blocking sockets */
+	public static final int ENGINE_NIO = 1;
+
+	private static final int MAX_ERROR_MESSAGE = 200; // the message may quote a whole malformed request line
+	private static final String[] ENTITY_HEADERS = {"content-type", "content-encoding", "content-language", "content-range"}; // dropped from responses that can't have a body
+
 	private Logger accessLogger;
 	private Logger errorLogger;
+	private ServerSocketChannel[] channels;
 	private ServerSocket sock;
 	private String address;
 	private int port;
 	private ExecutorService executor = Executors.newCachedThreadPool();
 	private StupidHttpHandler handler = new StupidHttpMuxer();
+	private int maxRequestsPerConnection = 1000;
+	private int keepAliveTimeout = 5000;
+	private long maxBodyLength = StupidHttpRequest.MAX_BODY_LENGTH;
+	private int engine = ENGINE_BLOCKING;
+	private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+	private int backlog = 0;
+	private int acceptorThreads = 1;
+	private boolean reusePort = false;
+	private Boolean tcpNoDelay = null;
+	private int sendBufferSize = 0;
+	private int receiveBufferSize = 0;
+	private int retryAfter = 1;
+	private byte[] overloadResponse = encodeOverloadResponse(1);
+	private final AtomicLong dispatchedTasks = new AtomicLong();
+	private final AtomicLong rejectedTasks = new AtomicLong();
+	private final AtomicLong totalQueueTime = new AtomicLong();
+	private final AtomicLong maxQueueTime = new AtomicLong();
 
 	/**
 	 * Create a new HTTP server listening on port 80
@@ -49,20 +98,45 @@ public class StupidHttpServer {
 
 	/**
 	 * Starts a new server socket.
+	 * With {@link #setReusePort(boolean)}, one server socket is bound for every acceptor thread.
 	 * 
-	 * @throws IOException Exception from {@link ServerSocket#ServerSocket(int)}
+	 * @throws IOException Exception from {@link ServerSocketChannel#bind(java.net.SocketAddress, int)}
+	 * @throws UnsupportedOperationException SO_REUSEPORT was requested, but the platform doesn't support it
 	 */
 	public void start() throws IOException {
-		this.sock = new ServerSocket(this.port, 0, InetAddress.getByName(this.address));
+		InetSocketAddress addr = new InetSocketAddress(InetAddress.getByName(this.address), this.port);
+		this.channels = new ServerSocketChannel[this.reusePort ? this.acceptorThreads : 1];
+		try {
+			for (int i = 0; i < this.channels.length; i++) {
+				this.channels[i] = ServerSocketChannel.open();
+				if (this.reusePort) {
+					if (!this.channels[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+					}
+					this.channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				this.channels[i].bind(addr, this.backlog);
+			}
+		} catch (IOException e) {
+			this.closeChannels();
+			throw e;
+		} catch (RuntimeException e) {
+			this.closeChannels();
+			throw e;
+		}
+		this.sock = this.channels[0].socket();
 	}
 
 	/**
-	 * Closes the server socket.
+	 * Closes the server sockets.
 	 * 
 	 * @throws IOException Exception from {@link ServerSocket#close()}
 	 */
 	public void stop() throws IOException {
-		this.sock.close();
+		for (ServerSocketChannel c : this.channels) {
+			c.close();
+		}
+		this.channels = null;
 		this.sock = null;
 	}
 
@@ -74,28 +148,74 @@ public class StupidHttpServer {
 	 */
 	public void accept() throws IOException, StupidHttpException {
 		Socket s = this.sock.accept();
+		this.configureSocket(s);
 		this.handle(s);
 	}
 
 	/**
 	 * Accept and handle connections indefinitely on several threads.
+	 * Returns when the server is stopped.
 	 */
 	public void listenAndServe() {
+		if (this.engine == ENGINE_NIO) {
+			try {
+				new StupidHttpNioEngine(this, this.channels, this.acceptorThreads, this.eventLoopThreads).run();
+			} catch (IOException e) {
+				this.logError(e, Level.SEVERE);
+			}
+			return;
+		}
+		Thread[] acceptors = new Thread[this.acceptorThreads - 1];
+		for (int i = 0; i < acceptors.length; i++) {
+			final ServerSocket sock = this.channels[(i + 1) % this.channels.length].socket();
+			acceptors[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					StupidHttpServer.this.acceptLoop(sock);
+				}
+			}, "stupidhttp-acceptor-" + (i + 1));
+			acceptors[i].start();
+		}
+		this.acceptLoop(this.sock);
+		for (Thread t : acceptors) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void acceptLoop(ServerSocket sock) {
 		for (;;) {
 			try {
-				final Socket s = this.sock.accept();
-				this.executor.execute(new Runnable() {
-					@Override
-					public void run() {
-						try {
-							StupidHttpServer.this.handle(s);
-						} catch (StupidHttpException e) {
-							handleError(e, s, StupidHttpStatus.BadRequest);
-						} catch (IOException e) {
-							handleError(e, s, StupidHttpStatus.InternalServerError);
+				final Socket s = sock.accept();
+				try {
+					this.configureSocket(s);
+				} catch (SocketException e) {
+					this.logError(e);
+				}
+				try {
+					this.dispatch(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								StupidHttpServer.this.handle(s);
+							} catch (StupidHttpException e) {
+								handleError(e, s, StupidHttpStatus.BadRequest);
+							} catch (SocketTimeoutException e) {
+								handleError(e, s, StupidHttpStatus.RequestTimeout);
+							} catch (IOException e) {
+								handleError(e, s, StupidHttpStatus.InternalServerError);
+							} catch (RuntimeException e) {
+								handleError(e, s, StupidHttpStatus.InternalServerError);
+							}
 						}
-					}
-				});
+					});
+				} catch (RejectedExecutionException e) {
+					this.shed(s);
+				}
 			} catch (SocketException e) {
 				this.logError(e, Level.SEVERE);
 				break;
@@ -135,6 +255,321 @@ public class StupidHttpServer {
 		this.handler = handler;
 	}
 
+	/**
+	 * @return The executor that runs connections (or, with {@link #ENGINE_NIO}, handlers)
+	 */
+	public ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * Sets the executor that runs connections with {@link #ENGINE_BLOCKING} and handlers with {@link #ENGINE_NIO}.
+	 * The default is an unbounded cached thread pool.
+	 * The previous executor is not shut down.
+	 * 
+	 * @param executor The new executor
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs every connection on its own virtual thread.
+	 * Blocking handlers then scale to many thousands of concurrent connections without a platform thread each.
+	 * The server itself avoids holding monitors while blocking, so virtual threads aren't pinned to their carriers.
+	 * 
+	 * @throws UnsupportedOperationException The Java runtime doesn't support virtual threads (before Java 21)
+	 */
+	public void useVirtualThreads() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			this.executor = (ExecutorService) m.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("virtual threads require Java 21 or newer");
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException(e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs connections on a fixed number of worker threads with a bounded queue.
+	 * When all workers are busy and the queue is full, new connections are immediately answered with
+	 * {@link StupidHttpStatus#ServiceUnavailable} from the accepting thread instead of being queued.
+	 * 
+	 * @param threads The number of worker threads
+	 * @param queueSize The number of connections that may wait for a worker; 0 to reject as soon as all workers are busy
+	 */
+	public void useBoundedWorkerPool(int threads, int queueSize) {
+		BlockingQueue<Runnable> queue;
+		if (queueSize > 0) {
+			queue = new ArrayBlockingQueue<Runnable>(queueSize);
+		} else {
+			queue = new SynchronousQueue<Runnable>();
+		}
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * @return The Retry-After value of overload responses in seconds
+	 */
+	public int getRetryAfter() {
+		return this.retryAfter;
+	}
+
+	/**
+	 * Sets the Retry-After value sent with {@link StupidHttpStatus#ServiceUnavailable} when the executor rejects a connection.
+	 * The default is 1 second.
+	 * 
+	 * @param seconds The number of seconds clients should wait before retrying
+	 */
+	public void setRetryAfter(int seconds) {
+		this.overloadResponse = encodeOverloadResponse(seconds);
+		this.retryAfter = seconds;
+	}
+
+	/**
+	 * @return The number of tasks waiting for an executor thread; 0 if the executor doesn't expose its queue
+	 */
+	public int getQueueDepth() {
+		if (this.executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) this.executor).getQueue().size();
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The number of tasks that were handed to the executor and started running
+	 */
+	public long getDispatchedTasks() {
+		return this.dispatchedTasks.get();
+	}
+
+	/**
+	 * @return The number of tasks the executor rejected and that were answered with {@link StupidHttpStatus#ServiceUnavailable}
+	 */
+	public long getRejectedTasks() {
+		return this.rejectedTasks.get();
+	}
+
+	/**
+	 * @return The total time dispatched tasks spent waiting for an executor thread, in nanoseconds
+	 */
+	public long getTotalQueueTime() {
+		return this.totalQueueTime.get();
+	}
+
+	/**
+	 * @return The longest time a dispatched task spent waiting for an executor thread, in nanoseconds
+	 */
+	public long getMaxQueueTime() {
+		return this.maxQueueTime.get();
+	}
+
+	/**
+	 * @return The engine used by {@link #listenAndServe()}
+	 */
+	public int getEngine() {
+		return this.engine;
+	}
+
+	/**
+	 * Selects the engine used by {@link #listenAndServe()}.
+	 * Handlers work the same way with either engine.
+	 * 
+	 * @param engine {@link #ENGINE_BLOCKING} or {@link #ENGINE_NIO}
+	 */
+	public void setEngine(int engine) {
+		if (engine != ENGINE_BLOCKING && engine != ENGINE_NIO) {
+			throw new IllegalArgumentException("unknown engine: " + engine);
+		}
+		this.engine = engine;
+	}
+
+	/**
+	 * @return The number of selector threads used by {@link #ENGINE_NIO}
+	 */
+	public int getEventLoopThreads() {
+		return this.eventLoopThreads;
+	}
+
+	/**
+	 * Sets the number of selector threads used by {@link #ENGINE_NIO}.
+	 * The default is the number of available processors.
+	 * 
+	 * @param threads The number of event loop threads
+	 */
+	public void setEventLoopThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("at least one event loop thread is required");
+		}
+		this.eventLoopThreads = threads;
+	}
+
+	/**
+	 * @return The listen backlog of the server socket; 0 for the OS default
+	 */
+	public int getBacklog() {
+		return this.backlog;
+	}
+
+	/**
+	 * Sets the maximum number of pending connections the OS queues before refusing them.
+	 * The default is 0, which uses the OS default.
+	 * Takes effect on the next {@link #start()}.
+	 * 
+	 * @param backlog The listen backlog
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * @return The number of threads accepting connections
+	 */
+	public int getAcceptorThreads() {
+		return this.acceptorThreads;
+	}
+
+	/**
+	 * Sets the number of threads accepting connections.
+	 * The default is 1.
+	 * With {@link #ENGINE_NIO}, acceptors are spread over the event loops.
+	 * 
+	 * @param threads The number of acceptor threads
+	 */
+	public void setAcceptorThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("at least one acceptor thread is required");
+		}
+		this.acceptorThreads = threads;
+	}
+
+	/**
+	 * @return Whether every acceptor thread gets its own SO_REUSEPORT server socket
+	 */
+	public boolean getReusePort() {
+		return this.reusePort;
+	}
+
+	/**
+	 * Binds a separate server socket for every acceptor thread with SO_REUSEPORT (supported on Linux),
+	 * so the kernel balances incoming connections over them instead of all acceptors contending for one socket.
+	 * Takes effect on the next {@link #start()}.
+	 * 
+	 * @param reusePort Whether to use SO_REUSEPORT
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * @return Whether TCP_NODELAY is set on accepted sockets; null if the OS default is left
+	 */
+	public Boolean getTcpNoDelay() {
+		return this.tcpNoDelay;
+	}
+
+	/**
+	 * Sets TCP_NODELAY on accepted sockets.
+	 * 
+	 * @param tcpNoDelay Whether to disable Nagle's algorithm; null leaves the OS default
+	 */
+	public void setTcpNoDelay(Boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return The send buffer size of accepted sockets in bytes; 0 if the OS default is left
+	 */
+	public int getSendBufferSize() {
+		return this.sendBufferSize;
+	}
+
+	/**
+	 * Sets SO_SNDBUF on accepted sockets.
+	 * 
+	 * @param size The send buffer size in bytes; 0 leaves the OS default
+	 */
+	public void setSendBufferSize(int size) {
+		this.sendBufferSize = size;
+	}
+
+	/**
+	 * @return The receive buffer size of accepted sockets in bytes; 0 if the OS default is left
+	 */
+	public int getReceiveBufferSize() {
+		return this.receiveBufferSize;
+	}
+
+	/**
+	 * Sets SO_RCVBUF on accepted sockets.
+	 * 
+	 * @param size The receive buffer size in bytes; 0 leaves the OS default
+	 */
+	public void setReceiveBufferSize(int size) {
+		this.receiveBufferSize = size;
+	}
+
+	/**
+	 * @return The maximum number of requests served on one connection
+	 */
+	public int getMaxRequestsPerConnection() {
+		return this.maxRequestsPerConnection;
+	}
+
+	/**
+	 * Sets the maximum number of requests served on one persistent connection before it is closed.
+	 * The default is 1000; 1 disables keep-alive.
+	 * 
+	 * @param max The maximum number of requests
+	 */
+	public void setMaxRequestsPerConnection(int max) {
+		this.maxRequestsPerConnection = max;
+	}
+
+	/**
+	 * @return The idle timeout of persistent connections in milliseconds
+	 */
+	public int getKeepAliveTimeout() {
+		return this.keepAliveTimeout;
+	}
+
+	/**
+	 * Sets how long a persistent connection may stay idle between requests before it is closed.
+	 * The default is 5000 milliseconds.
+	 * It also limits how long a client may stall while sending a request;
+	 * the request is then answered with {@link StupidHttpStatus#RequestTimeout}, or cut off if the response was already started.
+	 * With {@link #ENGINE_NIO}, a response the client stops reading is cut off after it made no progress for this long.
+	 * 
+	 * @param timeout The idle timeout in milliseconds
+	 */
+	public void setKeepAliveTimeout(int timeout) {
+		this.keepAliveTimeout = timeout;
+	}
+
+	/**
+	 * @return The default maximum request body length
+	 */
+	public long getMaxBodyLength() {
+		return this.maxBodyLength;
+	}
+
+	/**
+	 * Sets the default maximum length of request bodies handlers may read.
+	 * The default is 16 MB; {@link StupidHttpMuxer#setHandler(String, StupidHttpHandler, long)} can override it per route.
+	 * Longer bodies are rejected with {@link StupidHttpStatus#RequestEntityTooLarge} when a handler reads them.
+	 * 
+	 * The blocking engine streams bodies from the socket (see {@link StupidHttpRequest#getBodyStream()}).
+	 * The NIO engine buffers the whole body before dispatching the request, so it rejects bodies over this limit before a handler runs.
+	 * 
+	 * @param maxBodyLength The maximum length in bytes
+	 */
+	public void setMaxBodyLength(long maxBodyLength) {
+		this.maxBodyLength = maxBodyLength;
+	}
+
 	/**
 	 * Sets a logger for handled requests.
 	 * 
@@ -154,19 +589,306 @@ public class StupidHttpServer {
 	}
 
 	private void handle(Socket s) throws IOException, StupidHttpException {
-		StupidHttpRequest req = new StupidHttpRequest(s);
-		StupidHttpResponse resp = this.handler.handle(req);
-		this.logAccess(req, resp);
-		OutputStream out = s.getOutputStream();
-		resp.writeTo(out, !req.isHead());
+		String localAddress = s.getLocalSocketAddress().toString();
+		String remoteAddress = s.getRemoteSocketAddress().toString();
+		StupidHttpParser in = new StupidHttpParser(s.getInputStream());
+		StupidHttpWriteBuffer out = new StupidHttpWriteBuffer(s.getOutputStream(), StupidHttpWriteBuffer.SIZE); // reused for every response
+		StupidHttpBody.FileSink sink = s.getChannel() == null ? null : new ChannelFileSink(s.getChannel());
+		s.setSoTimeout(this.keepAliveTimeout); // bounds every read of the head and body, not just the wait for the next request
+		for (int n = 1;; n++) {
+			if (n > 1 && !this.awaitRequest(in)) {
+				break;
+			}
+			StupidHttpRequest req = new StupidHttpRequest(in, localAddress, remoteAddress);
+			StupidHttpResponse resp = this.serve(req);
+			boolean keepAlive = this.prepareConnection(req, resp, n < this.maxRequestsPerConnection && req.isKeepAlive());
+			this.logAccess(req, resp);
+			try {
+				resp.writeTo(out, sink, !req.isHead() && StupidHttpStatus.allowsBody(resp.getCode()));
+			} catch (IOException e) {
+				// the head may already be sent, so the response can only be cut off
+				this.logError(e, Level.FINE);
+				break;
+			} catch (RuntimeException e) {
+				this.logError(e);
+				break;
+			}
+			// the next request can only be read once this one's body is out of the way; a body writer may still read it until here
+			if (!keepAlive || !req.discardBody()) {
+				break;
+			}
+		}
 		s.close();
 	}
 
+	/**
+	 * Sends file regions to a blocking socket channel with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * which the OS can serve from the page cache without copying the data into the JVM (sendfile on Linux).
+	 * Buffers are written to the channel directly, so direct and mapped ones aren't copied either.
+	 */
+	private static class ChannelFileSink implements StupidHttpBody.FileSink {
+		private final SocketChannel channel;
+
+		ChannelFileSink(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void sendFile(FileChannel file, long position, long count) throws IOException {
+			try {
+				for (long done = 0; done < count;) {
+					done += StupidHttpBody.transfer(file, position + done, count - done, this.channel);
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		@Override
+		public void sendBuffer(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				this.channel.write(buf);
+			}
+		}
+	}
+
+	private boolean awaitRequest(StupidHttpParser in) throws IOException {
+		try {
+			return in.await();
+		} catch (SocketTimeoutException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Run the handler for a request.
+	 * Failures to read the request body are answered with {@link StupidHttpStatus#RequestEntityTooLarge}, {@link StupidHttpStatus#RequestTimeout} or {@link StupidHttpStatus#BadRequest},
+	 * other exceptions from the handler with {@link StupidHttpStatus#InternalServerError}; these responses close the connection.
+	 * 
+	 * @param req The request
+	 * @return The handler's response
+	 */
+	StupidHttpResponse serve(StupidHttpRequest req) {
+		req.setMaxBodyLength(this.maxBodyLength);
+		try {
+			return this.handler.handle(req);
+		} catch (UncheckedIOException e) {
+			int code = this.bodyErrorCode(e.getCause());
+			if (code != StupidHttpStatus.RequestEntityTooLarge) {
+				this.logError(e);
+			}
+			return this.errorResponse(e.getCause(), code);
+		} catch (RuntimeException e) {
+			this.logError(e);
+			return this.errorResponse(e, StupidHttpStatus.InternalServerError);
+		}
+	}
+
+	/**
+	 * @param e Exception from reading a request body
+	 * @return {@link StupidHttpStatus#RequestEntityTooLarge} if the body was too long, {@link StupidHttpStatus#RequestTimeout} if the client stalled,
+	 *         {@link StupidHttpStatus#BadRequest} otherwise
+	 */
+	int bodyErrorCode(IOException e) {
+		if (e instanceof SocketTimeoutException) {
+			return StupidHttpStatus.RequestTimeout;
+		}
+		if (e.getCause() instanceof StupidHttpException && ((StupidHttpException) e.getCause()).getType() == StupidHttpException.BODY_TOO_LONG) {
+			return StupidHttpStatus.RequestEntityTooLarge;
+		}
+		return StupidHttpStatus.BadRequest;
+	}
+
+	/**
+	 * Apply the configured socket options to an accepted socket.
+	 * 
+	 * @param s The socket
+	 * @throws SocketException Exception from setting an option
+	 */
+	void configureSocket(Socket s) throws SocketException {
+		if (this.tcpNoDelay != null) {
+			s.setTcpNoDelay(this.tcpNoDelay);
+		}
+		if (this.sendBufferSize > 0) {
+			s.setSendBufferSize(this.sendBufferSize);
+		}
+		if (this.receiveBufferSize > 0) {
+			s.setReceiveBufferSize(this.receiveBufferSize);
+		}
+	}
+
+	private void closeChannels() {
+		for (ServerSocketChannel c : this.channels) {
+			if (c != null) {
+				try {
+					c.close();
+				} catch (IOException e) {}
+			}
+		}
+		this.channels = null;
+	}
+
+	/**
+	 * Hand a task to the executor, recording how long it waits for a thread.
+	 * 
+	 * @param task The task
+	 * @throws RejectedExecutionException The executor is saturated
+	 */
+	void dispatch(final Runnable task) {
+		final long queued = System.nanoTime();
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long waited = System.nanoTime() - queued;
+					StupidHttpServer.this.dispatchedTasks.incrementAndGet();
+					StupidHttpServer.this.totalQueueTime.addAndGet(waited);
+					long max;
+					while (waited > (max = StupidHttpServer.this.maxQueueTime.get()) && !StupidHttpServer.this.maxQueueTime.compareAndSet(max, waited)) {}
+					task.run();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.rejectedTasks.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The pre-encoded {@link StupidHttpStatus#ServiceUnavailable} response for saturated executors
+	 */
+	byte[] getOverloadResponse() {
+		return this.overloadResponse;
+	}
+
+	/**
+	 * Answer a connection the executor rejected with the pre-encoded response, on the acceptor thread.
+	 * Closing a socket with unread data makes the OS reset the connection, which may discard the response before the client reads it,
+	 * so the output is shut down and the socket is handed to {@link Linger}, which drains and closes it later; the acceptor never waits for the client.
+	 */
+	private void shed(final Socket s) {
+		try {
+			s.getOutputStream().write(this.overloadResponse);
+			s.shutdownOutput();
+		} catch (IOException e) {
+			// the client is gone, nothing to do
+			closeQuietly(s);
+			return;
+		}
+		try {
+			Linger.TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					Linger.drainAndClose(s);
+				}
+			}, Linger.TIME, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			closeQuietly(s);
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Closes shed connections on a single shared thread, once the rest of their request had a moment to arrive.
+	 * Whatever was received is read without waiting for more, so closing doesn't reset the connection.
+	 */
+	private static final class Linger {
+		static final int TIME = 100; // milliseconds
+		private static final int MAX_DRAIN_LENGTH = 1024 * 64; // 64 KB
+		static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stupidhttp-linger");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		static void drainAndClose(Socket s) {
+			try {
+				s.setSoTimeout(1); // the smallest timeout; only data that already arrived is read
+				InputStream in = s.getInputStream();
+				byte[] buf = new byte[1024 * 8];
+				for (int drained = 0; drained < MAX_DRAIN_LENGTH;) {
+					int n = in.read(buf);
+					if (n < 0) {
+						break;
+					}
+					drained += n;
+				}
+			} catch (IOException e) {
+				// nothing more has arrived, or the client is gone
+			} finally {
+				closeQuietly(s);
+			}
+		}
+	}
+
+	private static byte[] encodeOverloadResponse(int retryAfter) {
+		StupidHttpResponse resp = new StupidHttpResponse();
+		resp.removeHeaders("date");
+		resp.setVersion("HTTP/1.1");
+		resp.setCode(StupidHttpStatus.ServiceUnavailable);
+		resp.setBody(String.format("%d %s", StupidHttpStatus.ServiceUnavailable, StupidHttpStatus.statusText(StupidHttpStatus.ServiceUnavailable)));
+		resp.setHeader(new StupidHttpHeader("retry-after", Integer.toString(retryAfter)));
+		resp.setHeader(new StupidHttpHeader("connection", "close"));
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			resp.writeTo(buf);
+		} catch (IOException e) {} // not thrown by ByteArrayOutputStream
+		return buf.toByteArray();
+	}
+
+	boolean prepareConnection(StupidHttpRequest req, StupidHttpResponse resp, boolean keepAlive) {
+		boolean http10 = "HTTP/1.0".equals(req.getVersion()) || "HTTP/0.9".equals(req.getVersion());
+		resp.setVersion(http10 ? "HTTP/1.0" : "HTTP/1.1");
+		if (resp.getPrerendered() != null) {
+			// the headers are already rendered for every version and keep-alive
+			keepAlive &= !resp.getPrerendered().isClose();
+			resp.setKeepAlive(keepAlive);
+			return keepAlive;
+		}
+		if (!StupidHttpStatus.allowsBody(resp.getCode())) {
+			// the body isn't sent; a 304 response may still give the length of the one it stands in for, 1xx and 204 responses must not
+			if (resp.getCode() != StupidHttpStatus.NotModified) {
+				resp.removeHeaders("content-length");
+			}
+			resp.removeHeaders("transfer-encoding");
+			// nor do the headers describing the body it doesn't have
+			for (String key : StupidHttpServer.ENTITY_HEADERS) {
+				resp.removeHeaders(key);
+			}
+		} else if (resp.getHeaders("content-length").length == 0) {
+			if (!resp.hasBody()) {
+				resp.setHeader(new StupidHttpHeader("content-length", "0"));
+			} else if (http10) {
+				resp.removeHeaders("transfer-encoding");
+				keepAlive = false; // the body can only be delimited by closing the connection
+			} else if (!resp.isChunked()) {
+				resp.setHeader(new StupidHttpHeader("transfer-encoding", "chunked"));
+			}
+		}
+		for (StupidHttpHeader h : resp.getHeaders("connection")) {
+			if ("close".equalsIgnoreCase(h.getValue())) {
+				keepAlive = false;
+			}
+		}
+		if (!keepAlive) {
+			resp.setHeader(new StupidHttpHeader("connection", "close"));
+		} else if (http10) {
+			resp.setHeader(new StupidHttpHeader("connection", "keep-alive"));
+		}
+		return keepAlive;
+	}
+
 	private void handleError(Exception e, Socket s, int code) {
 		this.logError(e);
-		StupidHttpResponse resp = new StupidHttpResponse();
-		resp.setCode(code);
-		resp.setBody(String.format("%d %s: %s", code, StupidHttpStatus.statusText(code), e.getMessage()));
+		StupidHttpResponse resp = this.errorResponse(e, code);
 		try {
 			resp.writeTo(s.getOutputStream());
 			s.close();
@@ -175,17 +897,29 @@ public class StupidHttpServer {
 		}
 	}
 
-	private void logAccess(StupidHttpRequest req, StupidHttpResponse resp) {
+	StupidHttpResponse errorResponse(Exception e, int code) {
+		StupidHttpResponse resp = new StupidHttpResponse();
+		resp.setCode(code);
+		String message = e.getMessage();
+		if (message != null && message.length() > MAX_ERROR_MESSAGE) {
+			message = message.substring(0, MAX_ERROR_MESSAGE) + "...";
+		}
+		resp.setBody(String.format("%d %s: %s", code, StupidHttpStatus.statusText(code), message));
+		resp.setHeader(new StupidHttpHeader("connection", "close"));
+		return resp;
+	}
+
+	void logAccess(StupidHttpRequest req, StupidHttpResponse resp) {
 		if (this.accessLogger != null) {
 			this.accessLogger.log(Level.INFO, String.format("%s - %s %s - %d", req.getRemoteAddress(), req.getMethod(), req.getPath(), resp.getCode()));
 		}
 	}
 
-	private void logError(Exception e) {
+	void logError(Exception e) {
 		this.logError(e, Level.WARNING);
 	}
 
-	private void logError(Exception e, Level l) {
+	void logError(Exception e, Level l) {
 		ByteArrayOutputStream buf = new ByteArrayOutputStream();
 		PrintStream bufps = new PrintStream(buf);
 		e.printStackTrace(bufps);
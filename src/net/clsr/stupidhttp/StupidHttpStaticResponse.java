@@ -0,0 +1,152 @@
+package net.clsr.stupidhttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StupidHttpStaticResponse implements a {@link StupidHttpHandler} that answers every request with the same response,
+ * such as a health check, robots.txt or a small fixed JSON document.
+ * 
+ * The status line, the headers and the body are rendered once, when the response is created, into a byte array for each combination
+ * of HTTP version and keep-alive; only the Date header of the current second is spliced in when it is sent,
+ * so a response takes a single write to the socket and neither headers nor the body are built, copied or encoded again.
+ * The response is immutable and may be shared by all threads and registered on any number of muxers.
+ * 
+ * The response returned by {@link #handle(StupidHttpRequest)} only carries the status code;
+ * its headers and body are in the pre-rendered bytes, and changing them has no effect.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+public final class StupidHttpStaticResponse implements StupidHttpHandler {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private final int code;
+	private final boolean close;
+	private final Rendered[] rendered = new Rendered[4]; // indexed by http10 * 2 + keepAlive
+
+	/**
+	 * Render a response.
+	 * 
+	 * The response's status code, headers and body are captured; the Date, Content-Length, Transfer-Encoding and Connection headers
+	 * are replaced by the ones for each request.
+	 * A streamed body is written once, now.
+	 * 
+	 * @param resp The response
+	 */
+	public StupidHttpStaticResponse(StupidHttpResponse resp) {
+		this.code = resp.getCode();
+		byte[] body = StupidHttpStatus.allowsBody(this.code) ? render(resp) : new byte[0];
+
+		ByteArrayOutputStream headers = new ByteArrayOutputStream();
+		boolean close = false;
+		for (StupidHttpHeader h : resp.getAllHeaders()) {
+			String key = h.getNormalizedKey();
+			if (key.equals("Connection")) {
+				close |= "close".equalsIgnoreCase(h.getValue());
+			} else if (!key.equals("Date") && !key.equals("Content-Length") && !key.equals("Transfer-Encoding")) {
+				headers.write(h.encoded(), 0, h.encoded().length);
+			}
+		}
+		if (StupidHttpStatus.allowsBody(this.code)) {
+			byte[] length = new StupidHttpHeader("content-length", Integer.toString(body.length)).encoded();
+			headers.write(length, 0, length.length);
+		}
+		this.close = close;
+
+		for (int i = 0; i < this.rendered.length; i++) {
+			boolean http10 = i >= 2;
+			boolean keepAlive = i % 2 == 1;
+			this.rendered[i] = new Rendered(StupidHttpStatus.statusLine(http10 ? "HTTP/1.0" : "HTTP/1.1", this.code), headers.toByteArray(),
+					!keepAlive ? "Connection: close\r\n" : http10 ? "Connection: keep-alive\r\n" : "", body);
+		}
+	}
+
+	/**
+	 * Render a simple response.
+	 * 
+	 * @param code Response code
+	 * @param contentType Content-Type header; if null, "text/plain; charset=utf-8" will be used
+	 * @param body The response body data
+	 */
+	public StupidHttpStaticResponse(int code, String contentType, String body) {
+		this(StupidHttpResponse.simpleResponse(code, contentType, body));
+	}
+
+	private static byte[] render(StupidHttpResponse resp) {
+		StupidHttpBody body = resp.getBodyData();
+		if (body == null) {
+			return new byte[0];
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() >= 0 ? (int) body.length() : 256);
+		try {
+			body.writeTo(out, null);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public StupidHttpResponse handle(StupidHttpRequest req) {
+		return new StupidHttpResponse(this);
+	}
+
+	/**
+	 * @return The status code of the response
+	 */
+	public int getCode() {
+		return this.code;
+	}
+
+	/**
+	 * @return Whether the response was created with "Connection: close", closing every connection it is sent on
+	 */
+	boolean isClose() {
+		return this.close;
+	}
+
+	/**
+	 * Write the response to a connection's buffer and flush it.
+	 * 
+	 * @param out The buffer
+	 * @param http10 Whether the request was HTTP/1.0
+	 * @param keepAlive Whether the connection is kept alive
+	 * @param writeBody Whether to write the body data too; should be false for HEAD requests
+	 * @throws IOException IO error during writing
+	 */
+	void writeTo(StupidHttpWriteBuffer out, boolean http10, boolean keepAlive, boolean writeBody) throws IOException {
+		Rendered r = this.rendered[(http10 ? 2 : 0) + (keepAlive ? 1 : 0)];
+		out.write(r.data, 0, r.dateOffset);
+		out.write(StupidHttpDate.header().encoded());
+		out.write(r.data, r.dateOffset, (writeBody ? r.data.length : r.headLength) - r.dateOffset);
+		out.flush();
+	}
+
+	/**
+	 * A response rendered for one HTTP version and keep-alive, without the Date header.
+	 */
+	private static final class Rendered {
+		final byte[] data;
+		final int dateOffset; // where the Date header goes
+		final int headLength; // the length without the body
+
+		Rendered(byte[] status, byte[] headers, String connection, byte[] body) {
+			byte[] conn = connection.getBytes(StandardCharsets.ISO_8859_1);
+			this.data = new byte[status.length + headers.length + conn.length + CRLF.length + body.length];
+			int n = 0;
+			System.arraycopy(status, 0, this.data, n, status.length);
+			n += status.length;
+			System.arraycopy(headers, 0, this.data, n, headers.length);
+			n += headers.length;
+			this.dateOffset = n;
+			System.arraycopy(conn, 0, this.data, n, conn.length);
+			n += conn.length;
+			System.arraycopy(CRLF, 0, this.data, n, CRLF.length);
+			n += CRLF.length;
+			this.headLength = n;
+			System.arraycopy(body, 0, this.data, n, body.length);
+		}
+	}
+}
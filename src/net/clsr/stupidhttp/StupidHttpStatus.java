@@ -1,5 +1,6 @@
 package net.clsr.stupidhttp;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -98,6 +99,9 @@ public class StupidHttpStatus {
 	public static final int HttpVersionNotSupported = 505;
 
 	private final static Map<Integer, String> statusTexts = new HashMap<Integer, String>();
+	// "HTTP/1.x 200 OK\r\n" for every known code, encoded once and shared by all responses
+	private final static byte[][] statusLines10 = new byte[600][];
+	private final static byte[][] statusLines11 = new byte[600][];
 	static {
 		statusTexts.put(Continue, "Continue");
 		statusTexts.put(SwitchingProtocols, "Switching Protocols");
@@ -144,6 +148,11 @@ public class StupidHttpStatus {
 		statusTexts.put(ServiceUnavailable, "Service Unavailable");
 		statusTexts.put(GatewayTimeout, "Gateway Timeout");
 		statusTexts.put(HttpVersionNotSupported, "HTTP Version Not Supported");
+
+		for (Map.Entry<Integer, String> e : statusTexts.entrySet()) {
+			statusLines10[e.getKey()] = encodeStatusLine("HTTP/1.0", e.getKey());
+			statusLines11[e.getKey()] = encodeStatusLine("HTTP/1.1", e.getKey());
+		}
 	}
 
 	/**
@@ -156,10 +165,44 @@ public class StupidHttpStatus {
 		return statusTexts.get(code);
 	}
 
+	/**
+	 * Check whether a response with a status code may have a body.
+	 * Informational (1xx), {@link #NoContent} and {@link #NotModified} responses never have one (RFC 9110 section 6.4.1),
+	 * so they are sent without Content-Length and Transfer-Encoding headers added by the server.
+	 * 
+	 * @param code The status code
+	 * @return Whether the response may have a body
+	 */
+	static boolean allowsBody(int code) {
+		return code >= 200 && code != NoContent && code != NotModified;
+	}
+
+	/**
+	 * Get the encoded status line of a response, including CRLF.
+	 * 
+	 * @param version The protocol version
+	 * @param code The status code
+	 * @return The status line; shared, so it must not be modified
+	 */
+	static byte[] statusLine(String version, int code) {
+		if (code >= 0 && code < statusLines11.length) {
+			byte[] line = "HTTP/1.1".equals(version) ? statusLines11[code] : "HTTP/1.0".equals(version) ? statusLines10[code] : null;
+			if (line != null) {
+				return line;
+			}
+		}
+		return encodeStatusLine(version, code);
+	}
+
+	private static byte[] encodeStatusLine(String version, int code) {
+		return String.format("%s %d %s\r\n", version, code, statusText(code)).getBytes(StandardCharsets.UTF_8);
+	}
+
 	/**
 	 * Construct a simple handler that replies with a HTTP status.
 	 * It uses text responses in the "123 Description" format (if the code was 123 and {@link StupidHttpStatus#statusText(int)} returned "Description" for it).
 	 * The response status code is set to the status code provided in the argument.
+	 * Statuses that can't have a body, like 204, get an empty response.
 	 * 
 	 * @param code The status code
 	 * @return The handler
@@ -170,7 +213,9 @@ public class StupidHttpStatus {
 			public StupidHttpResponse handle(StupidHttpRequest req) {
 				StupidHttpResponse resp = new StupidHttpResponse();
 				resp.setCode(code);
-				resp.setBody(String.format("%d %s", code, StupidHttpStatus.statusText(code)));
+				if (StupidHttpStatus.allowsBody(code)) {
+					resp.setBody(String.format("%d %s", code, StupidHttpStatus.statusText(code)));
+				}
 				return resp;
 			}
 		};
@@ -0,0 +1,79 @@
+package net.clsr.stupidhttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * StupidHttpWriteBuffer buffers the responses written to a connection, like a {@link java.io.BufferedOutputStream} that is kept for the whole connection.
+ * 
+ * The status line, the headers and a small body are collected in one array and written with a single call,
+ * and the array is reused for every response on the connection instead of being allocated for each one.
+ * Writes larger than the array go straight to the underlying stream.
+ * 
+ * @author Marko Ceferin <marko@cefer.in>
+ * @version 1.0
+ */
+final class StupidHttpWriteBuffer extends OutputStream {
+	static final int SIZE = 1024 * 8; // 8 KB
+
+	private final byte[] buf;
+	private int count = 0;
+	private OutputStream out;
+
+	/**
+	 * Create a buffer.
+	 * 
+	 * @param out The stream to write to; may be set later with {@link #setOutput(OutputStream)}
+	 * @param size The size of the buffer
+	 */
+	StupidHttpWriteBuffer(OutputStream out, int size) {
+		this.out = out;
+		this.buf = new byte[size];
+	}
+
+	/**
+	 * Change the stream the buffer writes to, discarding anything left unwritten.
+	 * 
+	 * @param out The stream
+	 */
+	void setOutput(OutputStream out) {
+		this.out = out;
+		this.count = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (this.count == this.buf.length) {
+			this.flushBuffer();
+		}
+		this.buf[this.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= this.buf.length) {
+			this.flushBuffer();
+			this.out.write(b, off, len);
+			return;
+		}
+		if (len > this.buf.length - this.count) {
+			this.flushBuffer();
+		}
+		System.arraycopy(b, off, this.buf, this.count, len);
+		this.count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.flushBuffer();
+		this.out.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (this.count > 0) {
+			int n = this.count;
+			this.count = 0; // dropped even if writing fails, the connection is unusable then
+			this.out.write(this.buf, 0, n);
+		}
+	}
+}